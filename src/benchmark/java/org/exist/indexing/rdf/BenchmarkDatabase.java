@@ -0,0 +1,135 @@
+package org.exist.indexing.rdf;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.xmldb.XmldbURI;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Embedded database of the benchmarks, with a collection of generated
+ * RDF/XML documents indexed by the RDF index.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkDatabase {
+
+    public static final XmldbURI COLLECTION_URI = XmldbURI.create("/db/rdfbench");
+
+    private static final String COLLECTION_CONFIG
+            = "<collection xmlns=\"http://exist-db.org/collection-config/1.0\">"
+            + "    <index>"
+            + "        <rdf/>"
+            + "    </index>"
+            + "</collection>";
+
+    /** number of documents stored before measuring */
+    @Param({"100"})
+    public int documents;
+
+    @Param({"10", "1000"})
+    public int triplesPerDocument;
+
+    @Param({"16"})
+    public int literalSize;
+
+    private final ExistEmbeddedServer existEmbeddedServer = new ExistEmbeddedServer(true);
+    private RdfXmlGenerator generator;
+    /* number of the next document stored by a benchmark */
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void startDb() throws Exception {
+        existEmbeddedServer.startDb();
+        generator = new RdfXmlGenerator(triplesPerDocument, literalSize, 42);
+        final BrokerPool pool = getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            Collection collection = broker.getOrCreateCollection(transaction, COLLECTION_URI);
+            pool.getConfigurationManager().addConfiguration(transaction, broker, collection, COLLECTION_CONFIG);
+            for (int i = 0; i < documents; i++) {
+                store(broker, transaction, collection, name(i), generator.document(i));
+            }
+            pool.getTransactionManager().commit(transaction);
+        }
+        next.set(documents);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopDb() throws Exception {
+        final BrokerPool pool = getBrokerPool();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            broker.removeCollection(transaction, broker.getCollection(COLLECTION_URI));
+            pool.getTransactionManager().commit(transaction);
+        }
+        existEmbeddedServer.stopDb();
+    }
+
+    public BrokerPool getBrokerPool() {
+        return existEmbeddedServer.getBrokerPool();
+    }
+
+    public RdfXmlGenerator getGenerator() {
+        return generator;
+    }
+
+    /**
+     * @param doc Number of a document
+     * @return Name of the document in the collection
+     */
+    public static String name(int doc) {
+        return "d" + doc + ".rdf";
+    }
+
+    /**
+     * @return Name of a document not stored before measuring, unique across
+     * the benchmark threads
+     */
+    public String nextName() {
+        return name(next.getAndIncrement());
+    }
+
+    /**
+     * Store a document in its own transaction.
+     */
+    public void store(String name, String xml) throws Exception {
+        final BrokerPool pool = getBrokerPool();
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = transact.beginTransaction()) {
+            store(broker, transaction, broker.getCollection(COLLECTION_URI), name, xml);
+            transact.commit(transaction);
+        }
+    }
+
+    /**
+     * Remove a document in its own transaction.
+     */
+    public void remove(String name) throws Exception {
+        final BrokerPool pool = getBrokerPool();
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = transact.beginTransaction()) {
+            broker.getCollection(COLLECTION_URI).removeXMLResource(transaction, broker, XmldbURI.create(name));
+            transact.commit(transaction);
+        }
+    }
+
+    private static void store(DBBroker broker, Txn transaction, Collection collection, String name, String xml)
+            throws Exception {
+        IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create(name), xml);
+        collection.store(transaction, broker, info, xml);
+    }
+
+}
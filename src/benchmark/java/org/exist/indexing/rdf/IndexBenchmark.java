@@ -0,0 +1,63 @@
+package org.exist.indexing.rdf;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of storing a document in its own eXist transaction and of removing
+ * it again, in a collection holding {@link BenchmarkDatabase#documents}
+ * documents. This includes the rest of eXist storing the document, not
+ * only the RDF index writing its triples to TDB.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IndexBenchmark {
+
+    /*
+     * Documents stored and removed by the benchmarks, beyond those stored
+     * before, each thread storing under names of its own
+     */
+    @State(Scope.Thread)
+    public static class Documents {
+
+        private String xml;
+
+        @Setup(Level.Trial)
+        public void setUp(BenchmarkDatabase db) {
+            xml = db.getGenerator().document(db.documents);
+        }
+    }
+
+    /*
+     * A document stored before each removeDocument call
+     */
+    @State(Scope.Thread)
+    public static class StoredDocument {
+
+        private String name;
+
+        @Setup(Level.Invocation)
+        public void store(BenchmarkDatabase db, Documents documents) throws Exception {
+            name = db.nextName();
+            db.store(name, documents.xml);
+        }
+    }
+
+    @Benchmark
+    public void storeDocument(BenchmarkDatabase db, Documents documents) throws Exception {
+        db.store(db.nextName(), documents.xml);
+    }
+
+    @Benchmark
+    public void removeDocument(BenchmarkDatabase db, StoredDocument document) throws Exception {
+        db.remove(document.name);
+    }
+
+}
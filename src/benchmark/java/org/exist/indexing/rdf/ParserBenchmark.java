@@ -0,0 +1,111 @@
+package org.exist.indexing.rdf;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.exist.dom.QName;
+import org.exist.storage.NodePath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Throughput of {@link DocumentTripleParser} alone: SAX events of a
+ * document in memory are fed to it, filling a {@link TripleBuffer}. This
+ * is not the stream listener of the index worker, which gets stored nodes
+ * rather than SAX events, defers elements to collect their attributes and
+ * interns qualified names; {@link IndexBenchmark} covers that path, with
+ * the database. The score is documents per second, the triples per second
+ * follow from the triplesPerDocument parameter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParserBenchmark {
+
+    @Param({"10", "1000"})
+    public int triplesPerDocument;
+
+    @Param({"16", "1024"})
+    public int literalSize;
+
+    private String document;
+    private SAXParser saxParser;
+    private final TripleBuffer triples = new TripleBuffer();
+    private ListenerEvents events;
+
+    @Setup
+    public void setUp() throws Exception {
+        document = new RdfXmlGenerator(triplesPerDocument, literalSize, 42).document(0);
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        saxParser = factory.newSAXParser();
+        RDFIndexConfig config = new RDFIndexConfig(DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .newDocument().createElementNS(null, "rdf"), Collections.<String, String>emptyMap());
+        events = new ListenerEvents(new DocumentTripleParser(triples), config);
+    }
+
+    @Benchmark
+    public int parse() throws Exception {
+        events.reset();
+        saxParser.parse(new InputSource(new StringReader(document)), events);
+        int size = triples.size();
+        triples.clear();
+        return size;
+    }
+
+    /*
+     * Element events with the path checks the listener does
+     */
+    private static final class ListenerEvents extends DefaultHandler {
+
+        private final DocumentTripleParser parser;
+        private final RDFIndexConfig config;
+        private final NodePath path = new NodePath();
+
+        ListenerEvents(DocumentTripleParser parser, RDFIndexConfig config) {
+            this.parser = parser;
+            this.config = config;
+        }
+
+        void reset() {
+            parser.startDocument(1, config);
+            path.reset();
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            int colon = qName.indexOf(':');
+            path.addComponent(new QName(localName, uri, colon > 0 ? qName.substring(0, colon) : null));
+            if (!parser.isParsed(path)) {
+                parser.skipElement();
+                return;
+            }
+            parser.startElement(uri, localName, qName, atts, null);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            parser.endElement(uri, localName, qName);
+            path.removeLastComponent();
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            parser.characters(ch, start, length);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package org.exist.indexing.rdf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.xquery.CompiledXQuery;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.Sequence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Latency of sparql:query per query shape over the benchmark collection,
+ * including the results document built by the index worker. The XQuery
+ * calling it is compiled once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryBenchmark {
+
+    private static final String NS = RdfXmlGenerator.NS;
+    private static final Map<String, String> QUERIES = new HashMap<>();
+
+    static {
+        QUERIES.put("subject", "SELECT ?p ?o WHERE { <" + NS + "r0-0> ?p ?o }");
+        QUERIES.put("type", "SELECT ?s WHERE { ?s a <" + NS + "Class3> }");
+        QUERIES.put("join", "SELECT ?s ?t WHERE { ?s <" + NS + "link> ?o . ?o a ?t }");
+        QUERIES.put("filter", "SELECT ?s ?v WHERE { ?s <" + NS + "p0> ?v FILTER(STRSTARTS(?v, 'a')) }");
+        QUERIES.put("construct", "CONSTRUCT { ?s ?p ?o } WHERE { ?s a <" + NS + "Class1> . ?s ?p ?o }");
+        QUERIES.put("ask", "ASK { ?s a <" + NS + "Class7> }");
+    }
+
+    @Param({"subject", "type", "join", "filter", "construct", "ask"})
+    public String shape;
+
+    private DBBroker broker;
+    private XQuery xquery;
+    private CompiledXQuery compiled;
+
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkDatabase db) throws Exception {
+        final BrokerPool pool = db.getBrokerPool();
+        broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+        xquery = pool.getXQueryService();
+        compiled = xquery.compile(broker, new XQueryContext(pool),
+                "import module namespace sparql=\"http://exist-db.org/xquery/sparql\"; "
+                + "sparql:query(\"" + QUERIES.get(shape) + "\")");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        broker.close();
+    }
+
+    @Benchmark
+    public Sequence query() throws Exception {
+        return xquery.execute(broker, compiled, null);
+    }
+
+}
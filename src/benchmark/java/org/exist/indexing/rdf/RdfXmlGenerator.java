@@ -0,0 +1,63 @@
+package org.exist.indexing.rdf;
+
+import java.util.Random;
+
+/**
+ * Generates synthetic RDF/XML documents for the benchmarks: rdf:RDF
+ * elements of resource descriptions, each with a type, a link to another
+ * resource and literal properties. Documents are the same for the same
+ * seed.
+ */
+public class RdfXmlGenerator {
+
+    public static final String NS = "http://exist-db.org/rdf/bench#";
+
+    private final int triplesPerDocument;
+    private final int literalSize;
+    private final Random random;
+
+    /**
+     * @param triplesPerDocument Number of triples per document, at least 3
+     * @param literalSize Number of characters of literal values
+     * @param seed Seed of the generated values
+     */
+    public RdfXmlGenerator(int triplesPerDocument, int literalSize, long seed) {
+        this.triplesPerDocument = Math.max(triplesPerDocument, 3);
+        this.literalSize = literalSize;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param doc Number of the document, making its resource URIs unique
+     * @return RDF/XML document
+     */
+    public String document(int doc) {
+        StringBuilder xml = new StringBuilder(triplesPerDocument * (literalSize + 64));
+        xml.append("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" xmlns:b=\"")
+                .append(NS).append("\">\n");
+        int triples = 0;
+        for (int resource = 0; triples < triplesPerDocument; resource++) {
+            xml.append("  <rdf:Description rdf:about=\"").append(NS).append('r').append(doc).append('-')
+                    .append(resource).append("\">\n");
+            xml.append("    <rdf:type rdf:resource=\"").append(NS).append("Class").append(resource % 8).append("\"/>\n");
+            xml.append("    <b:link rdf:resource=\"").append(NS).append('r').append(random.nextInt(doc + 1)).append('-')
+                    .append(random.nextInt(resource + 1)).append("\"/>\n");
+            triples += 2;
+            for (int p = 0; p < 8 && triples < triplesPerDocument; p++, triples++) {
+                xml.append("    <b:p").append(p).append('>').append(literal()).append("</b:p").append(p).append(">\n");
+            }
+            xml.append("  </rdf:Description>\n");
+        }
+        xml.append("</rdf:RDF>\n");
+        return xml.toString();
+    }
+
+    private String literal() {
+        char[] chars = new char[literalSize];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+}
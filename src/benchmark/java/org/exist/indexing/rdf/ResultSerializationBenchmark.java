@@ -0,0 +1,80 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.query.ResultSetRewindable;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Serialization of a SELECT result held in memory, so that only the
+ * writing of solutions is measured: as SAX events by
+ * {@link JenaResultSet2Sax}, without building a document, or as JSON and
+ * TSV by the Jena writers used for the text result formats.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ResultSerializationBenchmark {
+
+    @Param({"100", "10000"})
+    public int solutions;
+
+    @Param({"xml", "json", "tsv"})
+    public String format;
+
+    private ResultSetRewindable result;
+    private final DefaultHandler handler = new DefaultHandler();
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        RdfXmlGenerator generator = new RdfXmlGenerator(solutions, 16, 42);
+        Model model = ModelFactory.createDefaultModel();
+        model.read(new StringReader(generator.document(0)), null, "RDF/XML");
+        Dataset dataset = DatasetFactory.create(model);
+        try (QueryExecution qe = QueryExecutionFactory.create("SELECT * WHERE { ?s ?p ?o }", dataset)) {
+            result = ResultSetFactory.makeRewindable(qe.execSelect());
+        }
+    }
+
+    @Benchmark
+    public void serialize() {
+        result.reset();
+        switch (format) {
+            case "json":
+                ResultSetFormatter.outputAsJSON(sink, result);
+                break;
+            case "tsv":
+                ResultSetFormatter.outputAsTSV(sink, result);
+                break;
+            default:
+                new JenaResultSet2Sax(handler).apply(result, Long.MAX_VALUE);
+        }
+    }
+
+}
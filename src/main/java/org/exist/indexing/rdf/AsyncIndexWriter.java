@@ -0,0 +1,493 @@
+package org.exist.indexing.rdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Background writer of the RDF index, writing the changes of committed
+ * eXist transactions to TDB instead of the committing thread, when the
+ * index module is configured with asyncWrites. The changes of a
+ * transaction are appended to a journal, forced to disk and queued; a
+ * single writer thread drains the queue, writing the queued changes of
+ * each store in one TDB write transaction. The queue is bounded:
+ * committing threads wait while it is full. Changes not yet written when
+ * the database stopped or crashed are written from the journal when the
+ * index is opened again.
+ * <p>
+ * The journal is a sequence of numbered segment files. A new segment is
+ * begun once the current one exceeds {@link #SEGMENT_SIZE}, and segments
+ * whose changes are all written are deleted. Writing a change twice, as
+ * after a crash between the TDB commit and the deletion of its segment,
+ * leaves the same triples.
+ * <p>
+ * A write that fails is retried until it succeeds, holding up the changes
+ * queued after it, so they are written in order. Meanwhile {@link #await}
+ * fails, and the changes stay in the journal if the index is closed.
+ */
+class AsyncIndexWriter {
+
+    private static final Logger LOG = LogManager.getLogger(AsyncIndexWriter.class);
+
+    private static final String SEGMENT_PREFIX = "queue-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+    /* most queued transactions written in one TDB transaction */
+    private static final int MAX_DRAIN = 1000;
+    /* how often the idle writer checks for the index closing */
+    private static final long POLL_PERIOD = 500;
+    /* longest wait before retrying a failed write */
+    private static final long MAX_RETRY_DELAY = 30000;
+
+    private final TDBRDFIndex index;
+    private final Path directory;
+    private final Semaphore capacity;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    /* guards the journal and the sequence numbers, notified as changes are written */
+    private final Object lock = new Object();
+    /* changes queued and not yet written, oldest first, guarded by lock */
+    private final Deque<Entry> unwritten = new ArrayDeque<>();
+    private long enqueued = 0;
+    private long written = 0;
+    private long segment = 0;
+    /* oldest segment not deleted */
+    private long oldestSegment = 0;
+    /* segments of the last run are being queued, the later ones must be kept */
+    private boolean replaying = false;
+    private FileChannel journal;
+    private Thread thread;
+    private volatile boolean running = false;
+    /* error of the write being retried, null if none */
+    private volatile RuntimeException failure = null;
+
+    /**
+     * @param index The index
+     * @param directory Directory of the journal
+     * @param queueSize Number of transactions queued at most
+     */
+    AsyncIndexWriter(TDBRDFIndex index, Path directory, int queueSize) {
+        this.index = index;
+        this.directory = directory;
+        this.capacity = new Semaphore(queueSize);
+    }
+
+    /**
+     * Start the writer thread, and queue the changes left in the journal
+     * by the last run, so they are written before any new ones.
+     * @throws java.io.IOException Journal not readable or writable
+     */
+    void open() throws IOException {
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> segments = segments();
+        segment = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        oldestSegment = segments.isEmpty() ? segment : segments.firstKey();
+        journal = openSegment(segment);
+        replaying = !segments.isEmpty();
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "rdf-index-writer");
+        thread.setDaemon(true);
+        thread.start();
+
+        for (Map.Entry<Long, Path> file : segments.entrySet()) {
+            replay(file.getKey(), file.getValue());
+        }
+        synchronized (lock) {
+            replaying = false;
+            if (written == enqueued) {
+                deleteSegments(segment);
+            }
+        }
+    }
+
+    /**
+     * Write the changes still queued and stop the writer thread. Changes
+     * that can not be written are left in the journal.
+     */
+    void close() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        synchronized (lock) {
+            if (journal == null) {
+                return;
+            }
+            try {
+                journal.close();
+                if (written == enqueued) {
+                    Files.deleteIfExists(segmentFile(segment));
+                }
+            } catch (IOException e) {
+                LOG.warn("Failed to close RDF index journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Journal and queue the committed changes of a store, waiting while
+     * the queue is full. If they cannot be journaled, they are written
+     * right away, after the changes queued before them.
+     * @param store The store
+     * @param changes Changes to write
+     */
+    void add(TDBStore store, DatasetDelta changes) {
+        byte[] record;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(store.getName());
+            changes.write(out);
+            out.flush();
+            record = bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        capacity.acquireUninterruptibly();
+        try {
+            synchronized (lock) {
+                if (journal.size() > SEGMENT_SIZE) {
+                    journal.close();
+                    journal = openSegment(++segment);
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(12 + record.length);
+                buffer.putInt(record.length).putLong(crc.getValue()).put(record).flip();
+                while (buffer.hasRemaining()) {
+                    journal.write(buffer);
+                }
+                journal.force(false);
+                Entry entry = new Entry(store, changes, ++enqueued, segment);
+                queue.add(entry);
+                unwritten.add(entry);
+            }
+        } catch (IOException e) {
+            capacity.release();
+            LOG.error("Failed to journal RDF index changes, writing them now: " + e.getMessage(), e);
+            try {
+                // wait out failing writes too, these changes must not overtake them
+                awaitWritten(Long.MAX_VALUE, false);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ie) {
+                // only thrown failing fast
+            }
+            store.getWriteBatch().add(changes, null);
+        }
+    }
+
+    /**
+     * Wait until the changes queued so far are written to TDB.
+     * @throws java.lang.InterruptedException Interrupted while waiting
+     * @throws java.io.IOException Writing queued changes fails, they are retried
+     */
+    void await() throws InterruptedException, IOException {
+        awaitWritten(Long.MAX_VALUE, true);
+    }
+
+    /**
+     * Whether the queued changes leave a document indexed. If the newest
+     * queued changes of the document do not tell, as for removals from a
+     * shared graph, waits until they are written, but not for the rest of
+     * the queue.
+     * @param store Store of the document
+     * @param graphURI Graph of the document
+     * @param source Id of the document if the graph is shared, else {@link DatasetDelta#NO_SOURCE}
+     * @return True or false if the queued changes tell, null if the store tells
+     * @throws java.lang.InterruptedException Interrupted while waiting
+     * @throws java.io.IOException Writing the changes of the document fails, they are retried
+     */
+    Boolean isIndexed(TDBStore store, String graphURI, int source) throws InterruptedException, IOException {
+        long target = 0;
+        synchronized (lock) {
+            for (Iterator<Entry> it = unwritten.descendingIterator(); it.hasNext();) {
+                Entry entry = it.next();
+                if (entry.store == store && entry.changes.changes(graphURI, source)) {
+                    Boolean indexed = entry.changes.isIndexed(graphURI, source);
+                    if (indexed != null) {
+                        return indexed;
+                    }
+                    target = entry.seq;
+                    break;
+                }
+            }
+        }
+        if (target > 0) {
+            awaitWritten(target, true);
+        }
+        return null;
+    }
+
+    /*
+     * Wait until the changes queued up to target, or all queued so far,
+     * are written, or the writer stopped, failing fast while a write fails
+     * if failFast
+     */
+    private void awaitWritten(long target, boolean failFast) throws InterruptedException, IOException {
+        synchronized (lock) {
+            target = Math.min(target, enqueued);
+            while (written < target && running) {
+                RuntimeException e = failure;
+                if (failFast && e != null) {
+                    throw new IOException("Failed to write queued RDF index changes, retrying: " + e.getMessage(), e);
+                }
+                lock.wait(POLL_PERIOD);
+            }
+        }
+    }
+
+    /**
+     * @return Number of transactions queued and not yet written
+     */
+    long getDepth() {
+        synchronized (lock) {
+            return enqueued - written;
+        }
+    }
+
+    private void drain() {
+        while (running || !queue.isEmpty()) {
+            Entry first;
+            try {
+                first = queue.poll(POLL_PERIOD, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (first == null) {
+                continue;
+            }
+            List<Entry> entries = new ArrayList<>();
+            entries.add(first);
+            queue.drainTo(entries, MAX_DRAIN - 1);
+            if (!write(entries)) {
+                // closed while failing, the rest must not overtake these
+                return;
+            }
+        }
+    }
+
+    /*
+     * Write queued changes, merged per store, retrying a failed write
+     * until it succeeds. Returns false if the writer was closed before.
+     */
+    private boolean write(List<Entry> entries) {
+        Map<TDBStore, DatasetDelta> changes = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            DatasetDelta merged = changes.get(entry.store);
+            if (merged == null) {
+                // a copy, the queued changes are looked up until written
+                merged = new DatasetDelta();
+                changes.put(entry.store, merged);
+            }
+            merged.addAll(entry.changes);
+        }
+        for (Map.Entry<TDBStore, DatasetDelta> entry : changes.entrySet()) {
+            TDBWriteBatch batch = entry.getKey().getWriteBatch();
+            long delay = POLL_PERIOD;
+            try {
+                batch.add(entry.getValue(), null);
+            } catch (RuntimeException e) {
+                failure = e;
+                LOG.error("Failed to write queued changes of RDF store " + entry.getKey().getName()
+                        + ", retrying: " + e.getMessage(), e);
+                while (true) {
+                    if (!pause(delay)) {
+                        LOG.error("RDF index closed with unwritten changes, they are written at the next start");
+                        return false;
+                    }
+                    delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+                    try {
+                        // the failed changes are pending in the batch
+                        batch.commit();
+                        break;
+                    } catch (RuntimeException retryError) {
+                        failure = retryError;
+                        LOG.warn("Retry of RDF store " + entry.getKey().getName() + " write failed: "
+                                + retryError.getMessage());
+                    }
+                }
+                LOG.info("Wrote queued changes of RDF store " + entry.getKey().getName() + " on retry");
+            }
+        }
+        failure = null;
+
+        Entry last = entries.get(entries.size() - 1);
+        synchronized (lock) {
+            written = last.seq;
+            for (int i = 0; i < entries.size(); i++) {
+                unwritten.poll();
+            }
+            capacity.release(entries.size());
+            try {
+                deleteSegments(last.segment);
+            } catch (IOException e) {
+                LOG.warn("Failed to delete RDF index journal segment: " + e.getMessage());
+            }
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    /*
+     * Wait before a retry, returns false if the writer is closed meanwhile
+     */
+    private boolean pause(long millis) {
+        long end = System.currentTimeMillis() + millis;
+        while (running) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0) {
+                return true;
+            }
+            try {
+                Thread.sleep(Math.min(left, POLL_PERIOD));
+            } catch (InterruptedException e) {
+                // closing
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Delete the segments whose changes are all written: those before the
+     * one of the last change written, or all but the current one, emptied,
+     * once everything queued is written. While the segments of the last
+     * run are queued, those not queued yet are kept even if the writer has
+     * caught up. The caller holds the lock.
+     */
+    private void deleteSegments(long lastSegment) throws IOException {
+        boolean all = written == enqueued && !replaying;
+        long done = all ? segment : lastSegment;
+        while (oldestSegment < done) {
+            Files.deleteIfExists(segmentFile(oldestSegment++));
+        }
+        if (all) {
+            journal.truncate(0);
+        }
+    }
+
+    /*
+     * Queue the changes of a segment left by the last run
+     */
+    private void replay(long number, Path file) throws IOException {
+        int replayed = 0;
+        long size = Files.size(file);
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            while (true) {
+                byte[] record;
+                long checksum;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > size) {
+                        LOG.warn("Corrupt record in RDF index journal " + file + ", ignoring the rest of it");
+                        break;
+                    }
+                    record = new byte[length];
+                    checksum = in.readLong();
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    // end of the journal, or a record cut short by a crash before it was queued
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if (crc.getValue() != checksum) {
+                    LOG.warn("Corrupt record in RDF index journal " + file + ", ignoring the rest of it");
+                    break;
+                }
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                TDBStore store = index.getStore(recordIn.readUTF());
+                DatasetDelta changes = DatasetDelta.read(recordIn);
+                capacity.acquireUninterruptibly();
+                synchronized (lock) {
+                    Entry entry = new Entry(store, changes, ++enqueued, number);
+                    queue.add(entry);
+                    unwritten.add(entry);
+                }
+                replayed++;
+            }
+        }
+        if (replayed > 0) {
+            LOG.info("Queued " + replayed + " transactions left in RDF index journal " + file.getFileName());
+        }
+    }
+
+    /*
+     * Segment files by number
+     */
+    private TreeMap<Long, Path> segments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring file in RDF index journal directory: " + name);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private Path segmentFile(long number) {
+        return directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(segmentFile(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private static class Entry {
+
+        private final TDBStore store;
+        private final DatasetDelta changes;
+        private final long seq;
+        private final long segment;
+
+        Entry(TDBStore store, DatasetDelta changes, long seq, long segment) {
+            this.store = store;
+            this.changes = changes;
+            this.seq = seq;
+            this.segment = segment;
+        }
+    }
+
+}
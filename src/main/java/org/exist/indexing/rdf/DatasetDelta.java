@@ -0,0 +1,405 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pending changes to the named graphs of the RDF index, one
+ * {@link GraphDelta} per changed graph, or per changed graph and document
+ * for graphs shared by several documents, with counts of the document
+ * flushes and triple changes they were collected from.
+ */
+class DatasetDelta {
+
+    /** source of the changes to a graph of a single document */
+    static final int NO_SOURCE = -1;
+
+    /* a graph, and the document its changes come from */
+    private static final class Key {
+        final String graphURI;
+        final int source;
+
+        Key(String graphURI, int source) {
+            this.graphURI = graphURI;
+            this.source = source;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return source == other.source && graphURI.equals(other.graphURI);
+        }
+
+        @Override
+        public int hashCode() {
+            return graphURI.hashCode() * 31 + source;
+        }
+    }
+
+    /** graph and source -> pending changes, in the order they are applied */
+    private final Map<Key, GraphDelta> deltas = new LinkedHashMap<>();
+    private int documents = 0;
+    private long triples = 0;
+
+    /**
+     * Add the triples of a document.
+     * @param graphURI Graph of the document
+     * @param source Id of the document if the graph is shared, else {@link #NO_SOURCE}
+     * @param triples Triples to add
+     */
+    void add(String graphURI, int source, Collection<Triple> triples) {
+        GraphDelta delta = getDelta(graphURI, source);
+        for (Triple t : triples) {
+            delta.add(t);
+        }
+        this.triples += triples.size();
+        documents++;
+    }
+
+    /**
+     * Remove triples of a document.
+     * @param graphURI Graph of the document
+     * @param source Id of the document if the graph is shared, else {@link #NO_SOURCE}
+     * @param triples Triples to remove
+     */
+    void remove(String graphURI, int source, Collection<Triple> triples) {
+        GraphDelta delta = getDelta(graphURI, source);
+        for (Triple t : triples) {
+            delta.remove(t);
+        }
+        this.triples += triples.size();
+        documents++;
+    }
+
+    /**
+     * Remove all triples of a document.
+     * @param graphURI Graph of the document
+     */
+    void drop(String graphURI) {
+        getDelta(graphURI, NO_SOURCE).drop();
+        documents++;
+    }
+
+    /**
+     * Remove all triples of a graph shared by several documents.
+     * @param graphURI The graph
+     */
+    void dropSourced(String graphURI) {
+        getSourcedDrop(graphURI);
+        documents++;
+    }
+
+    /**
+     * Add the changes of a later delta to this one.
+     * @param later Changes made after the changes of this delta
+     */
+    void addAll(DatasetDelta later) {
+        for (Map.Entry<Key, GraphDelta> entry : later.deltas.entrySet()) {
+            Key key = entry.getKey();
+            GraphDelta laterDelta = entry.getValue();
+            GraphDelta delta;
+            if (laterDelta.isSourced()) {
+                delta = getSourcedDrop(key.graphURI);
+            } else {
+                delta = getDelta(key.graphURI, key.source);
+                if (laterDelta.isDrop()) {
+                    delta.drop();
+                }
+            }
+            for (Triple t : laterDelta.getRemoved()) {
+                delta.remove(t);
+            }
+            for (Triple t : laterDelta.getAdded()) {
+                delta.add(t);
+            }
+        }
+        documents += later.documents;
+        triples += later.triples;
+    }
+
+    /**
+     * Apply the changes to a dataset.
+     * @param dsg Dataset to change
+     * @param sources Side table in a write transaction, or null if the changes have no sources
+     * @param statistics Statistics to count the changes in
+     */
+    void apply(DatasetGraph dsg, DatasetGraph sources, StoreStatistics statistics) {
+        applyRemovals(dsg, sources, statistics);
+        applyAdditions(dsg, sources, statistics);
+    }
+
+    /**
+     * Apply the drops and removals of all graphs to a dataset. A graph is
+     * only dropped before the changes of its documents, so the removals
+     * can be applied before all additions.
+     * @param dsg Dataset to change
+     * @param sources Side table in a write transaction, or null if the changes have no sources
+     * @param statistics Statistics to count the changes in
+     */
+    void applyRemovals(DatasetGraph dsg, DatasetGraph sources, StoreStatistics statistics) {
+        for (Map.Entry<Key, GraphDelta> entry : deltas.entrySet()) {
+            Key key = entry.getKey();
+            entry.getValue().applyRemovals(dsg, NodeFactory.createURI(key.graphURI), sources, key.source, statistics);
+        }
+    }
+
+    /**
+     * Apply the additions of all graphs to a dataset, after the removals.
+     * @param dsg Dataset to change
+     * @param sources Side table in a write transaction, or null if the changes have no sources
+     * @param statistics Statistics to count the changes in
+     */
+    void applyAdditions(DatasetGraph dsg, DatasetGraph sources, StoreStatistics statistics) {
+        for (Map.Entry<Key, GraphDelta> entry : deltas.entrySet()) {
+            Key key = entry.getKey();
+            entry.getValue().applyAdditions(dsg, NodeFactory.createURI(key.graphURI), sources, key.source, statistics);
+        }
+    }
+
+    /**
+     * @param graphURI Graph of a document
+     * @param source Id of the document if the graph is shared, else {@link #NO_SOURCE}
+     * @return True if the changes change the triples of the document
+     */
+    boolean changes(String graphURI, int source) {
+        if (deltas.containsKey(new Key(graphURI, source))) {
+            return true;
+        }
+        GraphDelta drop = source != NO_SOURCE ? deltas.get(new Key(graphURI, NO_SOURCE)) : null;
+        return drop != null && drop.isSourced();
+    }
+
+    /**
+     * Whether the document is indexed once the changes are applied, if the
+     * changes tell without looking at the store: they add triples of the
+     * document, or drop its graph and add none.
+     * @param graphURI Graph of a document
+     * @param source Id of the document if the graph is shared, else {@link #NO_SOURCE}
+     * @return True or false if the changes tell, null if the store tells
+     */
+    Boolean isIndexed(String graphURI, int source) {
+        GraphDelta delta = deltas.get(new Key(graphURI, source));
+        if (delta != null && !delta.getAdded().isEmpty()) {
+            return Boolean.TRUE;
+        }
+        if (source == NO_SOURCE) {
+            return delta != null && delta.isDrop() ? Boolean.FALSE : null;
+        }
+        // changes of the document before a drop of the shared graph are dropped with it
+        GraphDelta drop = deltas.get(new Key(graphURI, NO_SOURCE));
+        return drop != null && drop.isSourced() ? Boolean.FALSE : null;
+    }
+
+    /**
+     * @return True if applying the changes changes the side table
+     */
+    boolean hasSources() {
+        for (Map.Entry<Key, GraphDelta> entry : deltas.entrySet()) {
+            if (entry.getKey().source != NO_SOURCE || entry.getValue().isSourced()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Set<String> getGraphs() {
+        Set<String> graphs = new LinkedHashSet<>();
+        for (Key key : deltas.keySet()) {
+            graphs.add(key.graphURI);
+        }
+        return graphs;
+    }
+
+    boolean isEmpty() {
+        return deltas.isEmpty();
+    }
+
+    int getDocuments() {
+        return documents;
+    }
+
+    long getTriples() {
+        return triples;
+    }
+
+    /**
+     * @return Number of triples added, after cancelling out
+     */
+    long getAddedTriples() {
+        long added = 0;
+        for (GraphDelta delta : deltas.values()) {
+            added += delta.getAdded().size();
+        }
+        return added;
+    }
+
+    /**
+     * @return Number of triples removed, after cancelling out, not counting dropped graphs
+     */
+    long getRemovedTriples() {
+        long removed = 0;
+        for (GraphDelta delta : deltas.values()) {
+            removed += delta.getRemoved().size();
+        }
+        return removed;
+    }
+
+    void clear() {
+        deltas.clear();
+        documents = 0;
+        triples = 0;
+    }
+
+    /**
+     * Write the changes, to be read back by {@link #read(DataInput)}.
+     * Blank nodes keep their labels, so removals still match the triples
+     * stored.
+     * @param out Output
+     * @throws java.io.IOException Write failed
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(documents);
+        out.writeLong(triples);
+        out.writeInt(deltas.size());
+        for (Map.Entry<Key, GraphDelta> entry : deltas.entrySet()) {
+            GraphDelta delta = entry.getValue();
+            writeString(out, entry.getKey().graphURI);
+            out.writeInt(entry.getKey().source);
+            out.writeBoolean(delta.isDrop());
+            out.writeBoolean(delta.isSourced());
+            writeTriples(out, delta.getRemoved());
+            writeTriples(out, delta.getAdded());
+        }
+    }
+
+    /**
+     * @param in Input
+     * @return Changes written by {@link #write(DataOutput)}
+     * @throws java.io.IOException Read failed
+     */
+    static DatasetDelta read(DataInput in) throws IOException {
+        DatasetDelta changes = new DatasetDelta();
+        changes.documents = in.readInt();
+        changes.triples = in.readLong();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            GraphDelta delta = changes.getDelta(readString(in), in.readInt());
+            boolean drop = in.readBoolean();
+            if (in.readBoolean()) {
+                delta.dropSourced();
+            } else if (drop) {
+                delta.drop();
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                delta.remove(readTriple(in));
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                delta.add(readTriple(in));
+            }
+        }
+        return changes;
+    }
+
+    private static void writeTriples(DataOutput out, Set<Triple> triples) throws IOException {
+        out.writeInt(triples.size());
+        for (Triple t : triples) {
+            writeNode(out, t.getSubject());
+            writeNode(out, t.getPredicate());
+            writeNode(out, t.getObject());
+        }
+    }
+
+    private static Triple readTriple(DataInput in) throws IOException {
+        return new Triple(readNode(in), readNode(in), readNode(in));
+    }
+
+    private static void writeNode(DataOutput out, Node node) throws IOException {
+        if (node.isURI()) {
+            out.writeByte('U');
+            writeString(out, node.getURI());
+        } else if (node.isBlank()) {
+            out.writeByte('B');
+            writeString(out, node.getBlankNodeLabel());
+        } else {
+            out.writeByte('L');
+            writeString(out, node.getLiteralLexicalForm());
+            writeString(out, node.getLiteralLanguage());
+            String datatypeURI = node.getLiteralDatatypeURI();
+            writeString(out, datatypeURI != null ? datatypeURI : "");
+        }
+    }
+
+    private static Node readNode(DataInput in) throws IOException {
+        switch (in.readByte()) {
+            case 'U':
+                return NodeFactory.createURI(readString(in));
+            case 'B':
+                return NodeFactory.createAnon(new AnonId(readString(in)));
+            case 'L':
+                String lexicalForm = readString(in);
+                String language = readString(in);
+                String datatypeURI = readString(in);
+                if (!language.isEmpty()) {
+                    return NodeFactory.createLiteral(lexicalForm, language, false);
+                }
+                return datatypeURI.isEmpty() ? NodeFactory.createLiteral(lexicalForm)
+                        : NodeFactory.createLiteral(lexicalForm, TypeMapper.getInstance().getSafeTypeByName(datatypeURI));
+            default:
+                throw new IOException("Invalid node in RDF index changes");
+        }
+    }
+
+    /* strings of any length, unlike writeUTF */
+    private static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private GraphDelta getSourcedDrop(String graphURI) {
+        // earlier changes of the documents are dropped with the graph
+        for (Iterator<Key> it = deltas.keySet().iterator(); it.hasNext();) {
+            Key key = it.next();
+            if (key.source != NO_SOURCE && key.graphURI.equals(graphURI)) {
+                it.remove();
+            }
+        }
+        GraphDelta delta = getDelta(graphURI, NO_SOURCE);
+        delta.dropSourced();
+        return delta;
+    }
+
+    private GraphDelta getDelta(String graphURI, int source) {
+        Key key = new Key(graphURI, source);
+        GraphDelta delta = deltas.get(key);
+        if (delta == null) {
+            delta = new GraphDelta();
+            deltas.put(key, delta);
+        }
+        return delta;
+    }
+
+}
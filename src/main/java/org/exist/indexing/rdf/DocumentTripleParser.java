@@ -0,0 +1,288 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.rdfxml.xmlinput.ALiteral;
+import com.hp.hpl.jena.rdfxml.xmlinput.AResource;
+import com.hp.hpl.jena.rdfxml.xmlinput.SAX2RDF;
+import com.hp.hpl.jena.rdfxml.xmlinput.StatementHandler;
+import com.hp.hpl.jena.vocabulary.RDF;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.exist.Namespaces;
+import org.exist.numbering.NodeId;
+import org.exist.storage.NodePath;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Parses the RDF/XML of a document, or of subtrees of it, to triples.
+ * <p>
+ * The RDF/XML is the whole document, or, if the index configuration
+ * includes RDF/XML islands, the elements it includes and their descendants.
+ * Other content, and elements excluded by the configuration with their
+ * descendants, is skipped without parsing. Triples with predicates the
+ * configuration does not index are dropped.
+ * <p>
+ * If an island root is rdf:RDF, each of its child elements is parsed on
+ * its own, with the base URI and language of the root, so that a subtree
+ * can be reindexed without the rest of the document. Blank nodes get labels
+ * derived from the document id, and from the node id of the subtree and
+ * their order in it, so parsing the same subtree again gives the same
+ * triples and removed triples can be matched against the stored ones.
+ * Labels given by rdf:nodeID are document scoped.
+ */
+class DocumentTripleParser implements StatementHandler {
+
+    private static final String RDF_NS = RDF.getURI();
+    private static final String RDF_ROOT = "RDF";
+    private static final String RDF_NODE_ID = "nodeID";
+    /* prefix of ARP anonymous ids given by rdf:nodeID, generated ones start with "A" */
+    private static final String USER_NODE_ID_PREFIX = "U";
+
+    private final TripleBuffer triples;
+    private final SAX2RDF saxHandler;
+
+    private int docId;
+    private RDFIndexConfig config;
+    /** element depth, 0 outside the first element streamed */
+    private int level;
+    /** depth of the current island root, 0 outside islands */
+    private int islandLevel;
+    /** depth of the current excluded element, 0 if none */
+    private int excludedLevel;
+    /** the element checked by isParsed is excluded */
+    private boolean excluding;
+    /** the island root is rdf:RDF, its children are parsed one by one */
+    private boolean split;
+    private String base;
+    private String lang;
+    /** blank node label prefix of the current parse */
+    private String scope;
+    private final Map<String, Node> blankNodes = new HashMap<>();
+    private final Set<String> nodeIds = new HashSet<>();
+
+    /**
+     * @param triples Buffer receiving the triples
+     * @throws org.xml.sax.SAXParseException RDF/XML parser could not be created
+     */
+    DocumentTripleParser(TripleBuffer triples) throws SAXParseException {
+        this.triples = triples;
+        saxHandler = SAX2RDF.create("");
+        saxHandler.getHandlers().setStatementHandler(this);
+    }
+
+    /**
+     * Start parsing a document, or a subtree of it outside any RDF/XML island.
+     * @param docId Id of the document
+     * @param config Index configuration of the document
+     */
+    void startDocument(int docId, RDFIndexConfig config) {
+        this.docId = docId;
+        this.config = config;
+        level = 0;
+        islandLevel = 0;
+        excludedLevel = 0;
+        split = false;
+        scope = null;
+        nodeIds.clear();
+        blankNodes.clear();
+    }
+
+    /**
+     * Start parsing children of an rdf:RDF island root.
+     * @param docId Id of the document
+     * @param config Index configuration of the document
+     * @param base xml:base of the island root, or null
+     * @param lang xml:lang of the island root, or null
+     */
+    void startSubtrees(int docId, RDFIndexConfig config, String base, String lang) {
+        startDocument(docId, config);
+        level = 1;
+        islandLevel = 1;
+        island(true, base, lang);
+    }
+
+    /**
+     * @return True if content at the current position is parsed
+     */
+    boolean isParsing() {
+        return islandLevel != 0 && excludedLevel == 0 && (!split || level > islandLevel);
+    }
+
+    /**
+     * Check if an element is parsed, before it is passed to
+     * {@link #startElement} or {@link #skipElement}. Called for every
+     * element, this only compares the path with the configured includes
+     * outside islands, and with the excludes if there are any.
+     * @param path Path of the element
+     * @return True if the element is parsed or starts an island, and its
+     * attributes are needed
+     */
+    boolean isParsed(NodePath path) {
+        excluding = false;
+        if (excludedLevel != 0) {
+            return false;
+        }
+        if (islandLevel == 0 && !(config.hasIncludes() ? config.isIncluded(path) : level == 0)) {
+            return false;
+        }
+        excluding = config.isExcluded(path);
+        return !excluding;
+    }
+
+    /**
+     * An element for which {@link #isParsed} returned true.
+     * @param namespaceURI Namespace of the element
+     * @param localName Local name of the element
+     * @param qName Qualified name of the element
+     * @param atts Attributes of the element
+     * @param nodeId Node id of the element
+     */
+    void startElement(String namespaceURI, String localName, String qName, Attributes atts, NodeId nodeId) throws SAXException {
+        level++;
+        if (islandLevel == 0) {
+            islandLevel = level;
+            if (RDF_NS.equals(namespaceURI) && RDF_ROOT.equals(localName)) {
+                island(true, atts.getValue(Namespaces.XML_NS, "base"), atts.getValue(Namespaces.XML_NS, "lang"));
+                // parsed with its children
+                return;
+            }
+            island(false, null, null);
+            initParse("", "", "d" + docId + "n" + nodeId);
+        } else if (split && level == islandLevel + 1) {
+            initParse(base, lang, "d" + docId + "n" + nodeId);
+        }
+
+        String id = atts.getValue(RDF_NS, RDF_NODE_ID);
+        if (id != null) {
+            nodeIds.add(id);
+        }
+        saxHandler.startElement(namespaceURI, localName, qName, atts);
+    }
+
+    /**
+     * An element for which {@link #isParsed} returned false.
+     */
+    void skipElement() {
+        level++;
+        if (excluding) {
+            excludedLevel = level;
+            excluding = false;
+        }
+    }
+
+    /**
+     * An element for which {@link #isParsed} returned true, left out with
+     * its descendants.
+     */
+    void excludeElement() {
+        level++;
+        excludedLevel = level;
+        excluding = false;
+    }
+
+    /**
+     * @param node Node of a parsed triple
+     * @return True if the node is a blank node generated in the last parse
+     * started, no other part of the document has it
+     */
+    boolean isLocal(Node node) {
+        return scope != null && node.isBlank() && node.getBlankNodeLabel().startsWith(scope + "_");
+    }
+
+    void endElement(String namespaceURI, String localName, String qName) throws SAXException {
+        if (isParsing()) {
+            saxHandler.endElement(namespaceURI, localName, qName);
+        }
+        if (level == excludedLevel) {
+            excludedLevel = 0;
+        }
+        if (level == islandLevel) {
+            islandLevel = 0;
+            split = false;
+        }
+        level--;
+    }
+
+    void characters(char[] ch, int start, int length) throws SAXException {
+        if (isParsing()) {
+            saxHandler.characters(ch, start, length);
+        }
+    }
+
+    private void island(boolean split, String base, String lang) {
+        this.split = split;
+        this.base = base == null ? "" : base;
+        this.lang = lang == null ? "" : lang;
+    }
+
+    private void initParse(String base, String lang, String scope) throws SAXParseException {
+        saxHandler.initParse(base, lang);
+        this.scope = scope;
+        blankNodes.clear();
+    }
+
+    @Override
+    public void statement(AResource subj, AResource pred, AResource obj) {
+        if (!config.isIndexed(pred.getURI())) {
+            return;
+        }
+        triples.add(new Triple(convert(subj), convert(pred), convert(obj)));
+    }
+
+    @Override
+    public void statement(AResource subj, AResource pred, ALiteral lit) {
+        if (!config.isIndexed(pred.getURI())) {
+            return;
+        }
+        triples.add(new Triple(convert(subj), convert(pred), convert(lit)));
+    }
+
+    private Node convert(AResource r) {
+        if (!r.isAnonymous()) {
+            return NodeFactory.createURI(r.getURI());
+        }
+        String anonId = r.getAnonymousID();
+        Node node = blankNodes.get(anonId);
+        if (node == null) {
+            String nodeId = nodeId(anonId);
+            String label = nodeId != null
+                    ? "d" + docId + "_" + nodeId
+                    : scope + "_" + blankNodes.size();
+            node = NodeFactory.createAnon(new AnonId(label));
+            blankNodes.put(anonId, node);
+        }
+        return node;
+    }
+
+    /*
+     * rdf:nodeID of an anonymous resource, or null for generated ones. The
+     * parser prefixes rdf:nodeIDs to tell them from its generated ids.
+     */
+    private String nodeId(String anonId) {
+        if (!anonId.startsWith(USER_NODE_ID_PREFIX)) {
+            return null;
+        }
+        String id = anonId.substring(USER_NODE_ID_PREFIX.length());
+        return nodeIds.contains(id) ? id : null;
+    }
+
+    private static Node convert(ALiteral lit) {
+        if (lit.isWellFormedXML()) {
+            return NodeFactory.createLiteral(lit.toString(), null, true);
+        }
+        String dt = lit.getDatatypeURI();
+        if (dt == null) {
+            return NodeFactory.createLiteral(lit.toString(), lit.getLang(), false);
+        }
+        return NodeFactory.createLiteral(lit.toString(), null, TypeMapper.getInstance().getSafeTypeByName(dt));
+    }
+
+}
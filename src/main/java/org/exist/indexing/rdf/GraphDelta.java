@@ -0,0 +1,137 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Pending changes to one named graph: whether the graph is dropped, and the
+ * triples removed and added after that. A triple added after being removed,
+ * or removed after being added, cancels out.
+ * <p>
+ * The changes to a graph shared by several documents are kept per document,
+ * and recorded in the {@link TripleSources} side table when applied.
+ */
+class GraphDelta {
+
+    private boolean drop = false;
+    /** the graph is shared, dropping it drops its side table entries */
+    private boolean sourced = false;
+    private final Set<Triple> removed = new LinkedHashSet<>();
+    private final Set<Triple> added = new LinkedHashSet<>();
+
+    void drop() {
+        drop = true;
+        removed.clear();
+        added.clear();
+    }
+
+    /**
+     * Drop a graph shared by several documents.
+     */
+    void dropSourced() {
+        drop();
+        sourced = true;
+    }
+
+    void add(Triple triple) {
+        // re-adding a removed triple leaves it where it was
+        if (!removed.remove(triple)) {
+            added.add(triple);
+        }
+    }
+
+    void remove(Triple triple) {
+        added.remove(triple);
+        if (!drop) {
+            removed.add(triple);
+        }
+    }
+
+    boolean isDrop() {
+        return drop;
+    }
+
+    boolean isSourced() {
+        return sourced;
+    }
+
+    Set<Triple> getAdded() {
+        return added;
+    }
+
+    Set<Triple> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return Number of triple changes
+     */
+    int size() {
+        return removed.size() + added.size();
+    }
+
+    /**
+     * Apply the drop and the removals to a dataset.
+     * @param dsg Dataset to change
+     * @param graph Name of the graph in dsg
+     * @param sources Side table in a write transaction, or null if no changes are sourced
+     * @param source Id of the document whose triples change, or {@link DatasetDelta#NO_SOURCE}
+     * @param statistics Statistics to count the changes in
+     */
+    void applyRemovals(DatasetGraph dsg, Node graph, DatasetGraph sources, int source, StoreStatistics statistics) {
+        if (drop) {
+            for (Iterator<Quad> quads = dsg.find(graph, Node.ANY, Node.ANY, Node.ANY); quads.hasNext();) {
+                statistics.remove(quads.next().asTriple());
+            }
+            dsg.removeGraph(graph);
+            if (sourced) {
+                TripleSources.removeGraph(sources, graph);
+            }
+        }
+        if (source == DatasetDelta.NO_SOURCE) {
+            for (Triple t : removed) {
+                dsg.delete(graph, t.getSubject(), t.getPredicate(), t.getObject());
+                statistics.remove(t);
+            }
+        } else {
+            Node document = TripleSources.document(source);
+            for (Triple t : removed) {
+                // keep triples other documents state too
+                if (TripleSources.remove(sources, graph, document, t)) {
+                    dsg.delete(graph, t.getSubject(), t.getPredicate(), t.getObject());
+                    statistics.remove(t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the additions to a dataset, after the removals.
+     * @param dsg Dataset to change
+     * @param graph Name of the graph in dsg
+     * @param sources Side table in a write transaction, or null if no changes are sourced
+     * @param source Id of the document whose triples change, or {@link DatasetDelta#NO_SOURCE}
+     * @param statistics Statistics to count the changes in
+     */
+    void applyAdditions(DatasetGraph dsg, Node graph, DatasetGraph sources, int source, StoreStatistics statistics) {
+        Node document = source != DatasetDelta.NO_SOURCE ? TripleSources.document(source) : null;
+        for (Triple t : added) {
+            if (document != null) {
+                TripleSources.add(sources, graph, document, t);
+            }
+            // other documents, or an earlier write of this change, may have stored the triple already
+            if (!dsg.contains(graph, t.getSubject(), t.getPredicate(), t.getObject())) {
+                statistics.add(t);
+            }
+        }
+        for (Triple t : added) {
+            dsg.add(graph, t.getSubject(), t.getPredicate(), t.getObject());
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import java.util.Iterator;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.AnyURIValue;
+import org.exist.xquery.value.AtomicValue;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+
+/**
+ * Builds one XQuery map per solution of a result set, from variable name
+ * to value, instead of a results document. IRIs become xs:anyURI, literals
+ * of XSD datatypes the xs: type of the same name, other literals xs:string
+ * and blank nodes xs:string in the N-Triples form _:label. Unbound
+ * variables have no entry.
+ */
+public class JenaResultSet2Maps {
+
+    private static final String XSD_NS = XSDDatatype.XSD + "#";
+
+    private final XQueryContext context;
+
+    public JenaResultSet2Maps(XQueryContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Adds a map for each of at most max solutions from rs to solutions,
+     * the remaining solutions are left unread in rs.
+     *
+     * @param rs result set to read solutions from
+     * @param solutions sequence receiving the maps
+     * @param max maximum number of solutions to add, 0 for all
+     * @return number of solutions added
+     * @throws org.exist.xquery.XPathException map could not be built
+     */
+    public long apply(ResultSet rs, ValueSequence solutions, long max) throws XPathException {
+        long count = 0;
+        while ((max <= 0 || count < max) && rs.hasNext()) {
+            solutions.add(map(rs.nextSolution()));
+            count++;
+        }
+        return count;
+    }
+
+    private MapType map(QuerySolution qs) throws XPathException {
+        MapType map = new MapType(context);
+        for (Iterator<String> vars = qs.varNames(); vars.hasNext();) {
+            String varName = vars.next();
+            RDFNode node = qs.get(varName);
+            if (node != null) {
+                map.add(new StringValue(varName), value(node));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * @param node An RDF term
+     * @return Atomic value of the term
+     * @throws org.exist.xquery.XPathException IRI not valid as xs:anyURI
+     */
+    public static AtomicValue value(RDFNode node) throws XPathException {
+        if (node.isURIResource()) {
+            return new AnyURIValue(node.asResource().getURI());
+        }
+        if (node.isAnon()) {
+            return new StringValue("_:" + node.asResource().getId().getLabelString());
+        }
+        Literal literal = node.asLiteral();
+        String datatypeURI = literal.getDatatypeURI();
+        if (datatypeURI == null || !datatypeURI.startsWith(XSD_NS) || !literal.getLanguage().isEmpty()) {
+            return new StringValue(literal.getLexicalForm());
+        }
+        try {
+            int type = Type.getType("xs:" + datatypeURI.substring(XSD_NS.length()));
+            return new StringValue(literal.getLexicalForm()).convertTo(type);
+        } catch (XPathException e) {
+            // no such xs: type, or an ill-typed literal
+            return new StringValue(literal.getLexicalForm());
+        }
+    }
+
+}
@@ -8,6 +8,7 @@ import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.sparql.ARQConstants;
 import com.hp.hpl.jena.sparql.resultset.ResultSetProcessor;
 import com.hp.hpl.jena.sparql.resultset.XMLResults;
+import java.util.Iterator;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
@@ -25,6 +26,31 @@ public class JenaResultSet2Sax implements ResultSetProcessor, XMLResults {
         this.handler = handler;
     }
 
+    /**
+     * Writes a results document with at most max solutions from rs, the
+     * remaining solutions are left unread in rs.
+     *
+     * @param rs result set to read solutions from
+     * @param max maximum number of solutions to write
+     * @return number of solutions written
+     */
+    public long apply(ResultSet rs, long max) {
+        start(rs);
+        long count = 0;
+        while (count < max && rs.hasNext()) {
+            QuerySolution qs = rs.nextSolution();
+            start(qs);
+            for (Iterator<String> vars = qs.varNames(); vars.hasNext();) {
+                String varName = vars.next();
+                binding(varName, qs.get(varName));
+            }
+            finish(qs);
+            count++;
+        }
+        finish(rs);
+        return count;
+    }
+
     @Override
     public void start(ResultSet rs) {
         // start elements: document, root, header, results
@@ -0,0 +1,215 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.ARQConstants;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.vocabulary.RDF;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Writes a stream of triples as RDF/XML to a SAX handler, one triple at a time.
+ * Consecutive triples sharing a subject are grouped in one rdf:Description,
+ * nothing else is buffered. Blank nodes are written with rdf:nodeID
+ * values generated per result, as their labels need not be NCNames.
+ * <p>
+ * A SAXException of the handler is thrown wrapped in a RiotException, as
+ * StreamRDF methods can not throw it.
+ */
+public class JenaTriples2Sax implements StreamRDF {
+
+    private final static Logger LOG = LogManager.getLogger(JenaTriples2Sax.class);
+
+    private static final String RDF_NS = RDF.getURI();
+    private static final String RDF_PREFIX = "rdf";
+    private static final String RDF_ROOT = "RDF";
+    private static final String RDF_DESCRIPTION = "Description";
+    private static final String RDF_ABOUT = "about";
+    private static final String RDF_NODE_ID = "nodeID";
+    private static final String RDF_RESOURCE = "resource";
+    private static final String RDF_DATATYPE = "datatype";
+
+    private final ContentHandler handler;
+    private final AttributesImpl atts = new AttributesImpl();
+    /** namespace URI -> prefix, for predicate element names */
+    private final Map<String, String> prefixes = new HashMap<>();
+    /** blank node -> rdf:nodeID */
+    private final Map<Node, String> nodeIds = new HashMap<>();
+    private Node currentSubject;
+
+    public JenaTriples2Sax(ContentHandler handler) {
+        this.handler = handler;
+        prefixes.put(RDF_NS, RDF_PREFIX);
+    }
+
+    @Override
+    public void start() {
+        // start elements: document, root
+        try {
+            handler.startDocument();
+            handler.startPrefixMapping(RDF_PREFIX, RDF_NS);
+            atts.clear();
+            handler.startElement(RDF_NS, RDF_ROOT, qname(RDF_PREFIX, RDF_ROOT), atts);
+        } catch (SAXException ex) {
+            throw new RiotException(ex);
+        }
+    }
+
+    @Override
+    public void finish() {
+        // end description, root, document
+        try {
+            endDescription();
+            handler.endElement(RDF_NS, RDF_ROOT, qname(RDF_PREFIX, RDF_ROOT));
+            handler.endPrefixMapping(RDF_PREFIX);
+            handler.endDocument();
+        } catch (SAXException ex) {
+            throw new RiotException(ex);
+        }
+    }
+
+    @Override
+    public void triple(Triple triple) {
+        Node predicate = triple.getPredicate();
+        String uri = predicate.getURI();
+        int split = splitNamespace(uri);
+        if (split <= 0 || split == uri.length()) {
+            LOG.warn("Predicate can not be written as RDF/XML, skipping: " + uri);
+            return;
+        }
+        String ns = uri.substring(0, split);
+        String localName = uri.substring(split);
+
+        try {
+            if (!triple.getSubject().equals(currentSubject)) {
+                endDescription();
+                startDescription(triple.getSubject());
+            }
+
+            String prefix = prefixes.get(ns);
+            boolean declare = prefix == null || !RDF_PREFIX.equals(prefix);
+            if (prefix == null) {
+                int n = prefixes.size();
+                do {
+                    prefix = "ns" + n++;
+                } while (prefixes.containsValue(prefix));
+                prefixes.put(ns, prefix);
+            }
+            if (declare) {
+                handler.startPrefixMapping(prefix, ns);
+            }
+
+            // property element
+            Node object = triple.getObject();
+            atts.clear();
+            if (object.isURI()) {
+                atts.addAttribute(RDF_NS, RDF_RESOURCE, qname(RDF_PREFIX, RDF_RESOURCE), "CDATA", object.getURI());
+            } else if (object.isBlank()) {
+                atts.addAttribute(RDF_NS, RDF_NODE_ID, qname(RDF_PREFIX, RDF_NODE_ID), "CDATA", nodeId(object));
+            } else if (object.isLiteral()) {
+                String lang = object.getLiteralLanguage();
+                String dt = object.getLiteralDatatypeURI();
+                if (lang != null && lang.length() != 0) {
+                    atts.addAttribute(ARQConstants.XML_NS, "lang", "xml:lang", "CDATA", lang);
+                } else if (dt != null && dt.length() != 0) {
+                    atts.addAttribute(RDF_NS, RDF_DATATYPE, qname(RDF_PREFIX, RDF_DATATYPE), "CDATA", dt);
+                }
+            }
+            String qname = qname(prefix, localName);
+            handler.startElement(ns, localName, qname, atts);
+            if (object.isLiteral()) {
+                String s = object.getLiteralLexicalForm();
+                handler.characters(s.toCharArray(), 0, s.length());
+            }
+            handler.endElement(ns, localName, qname);
+
+            if (declare) {
+                handler.endPrefixMapping(prefix);
+            }
+        } catch (SAXException ex) {
+            throw new RiotException(ex);
+        }
+    }
+
+    @Override
+    public void quad(Quad quad) {
+        triple(quad.asTriple());
+    }
+
+    @Override
+    public void base(String base) {
+    }
+
+    @Override
+    public void prefix(String prefix, String iri) {
+        // prefer the prefixes of the query over generated ones
+        if (prefix != null && prefix.length() != 0 && !prefixes.containsKey(iri)
+                && !prefixes.containsValue(prefix)) {
+            prefixes.put(iri, prefix);
+        }
+    }
+
+    private void startDescription(Node subject) throws SAXException {
+        atts.clear();
+        if (subject.isBlank()) {
+            atts.addAttribute(RDF_NS, RDF_NODE_ID, qname(RDF_PREFIX, RDF_NODE_ID), "CDATA", nodeId(subject));
+        } else {
+            atts.addAttribute(RDF_NS, RDF_ABOUT, qname(RDF_PREFIX, RDF_ABOUT), "CDATA", subject.getURI());
+        }
+        handler.startElement(RDF_NS, RDF_DESCRIPTION, qname(RDF_PREFIX, RDF_DESCRIPTION), atts);
+        currentSubject = subject;
+    }
+
+    private void endDescription() throws SAXException {
+        if (currentSubject != null) {
+            handler.endElement(RDF_NS, RDF_DESCRIPTION, qname(RDF_PREFIX, RDF_DESCRIPTION));
+            currentSubject = null;
+        }
+    }
+
+    private String nodeId(Node blank) {
+        String id = nodeIds.get(blank);
+        if (id == null) {
+            id = "b" + nodeIds.size();
+            nodeIds.put(blank, id);
+        }
+        return id;
+    }
+
+    private static String qname(String prefix, String localName) {
+        return prefix + ':' + localName;
+    }
+
+    /*
+     * Index of the local name in uri, the longest suffix that is a valid
+     * XML NCName, or -1 if there is none.
+     */
+    static int splitNamespace(String uri) {
+        int i = uri.length();
+        while (i > 0 && isNCNameChar(uri.charAt(i - 1))) {
+            i--;
+        }
+        // local name must start with a name start character
+        while (i < uri.length() && !isNCNameStartChar(uri.charAt(i))) {
+            i++;
+        }
+        return i < uri.length() ? i : -1;
+    }
+
+    private static boolean isNCNameStartChar(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isNCNameChar(char c) {
+        return isNCNameStartChar(c) || Character.isDigit(c) || c == '-' || c == '.';
+    }
+
+}
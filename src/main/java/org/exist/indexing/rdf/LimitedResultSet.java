@@ -0,0 +1,79 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import java.util.List;
+
+/**
+ * Result set ending after at most a given number of solutions, for result
+ * writers reading a result set to its end. Whether solutions were left
+ * unread is told by {@link #isExceeded()}.
+ */
+class LimitedResultSet implements ResultSet {
+
+    private final ResultSet rs;
+    private final long max;
+    private long count = 0;
+
+    /**
+     * @param rs Result set to read solutions from
+     * @param max Maximum number of solutions, 0 for all
+     */
+    LimitedResultSet(ResultSet rs, long max) {
+        this.rs = rs;
+        this.max = max;
+    }
+
+    /**
+     * @return True if the result set ended at the maximum with solutions left
+     */
+    boolean isExceeded() {
+        return max > 0 && count >= max && rs.hasNext();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return (max <= 0 || count < max) && rs.hasNext();
+    }
+
+    @Override
+    public QuerySolution next() {
+        count++;
+        return rs.next();
+    }
+
+    @Override
+    public QuerySolution nextSolution() {
+        count++;
+        return rs.nextSolution();
+    }
+
+    @Override
+    public Binding nextBinding() {
+        count++;
+        return rs.nextBinding();
+    }
+
+    @Override
+    public int getRowNumber() {
+        return rs.getRowNumber();
+    }
+
+    @Override
+    public List<String> getResultVars() {
+        return rs.getResultVars();
+    }
+
+    @Override
+    public Model getResourceModel() {
+        return rs.getResourceModel();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+}
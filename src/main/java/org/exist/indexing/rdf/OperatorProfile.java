@@ -0,0 +1,146 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.Op0;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIteratorWrapper;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutor;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutorFactory;
+import com.hp.hpl.jena.tdb.solver.OpExecutorTDB1;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Row counts and times of the algebra operators of one query execution.
+ * Installed as the executor factory of the execution, it wraps the
+ * iterator of every operator evaluated, by TDB or by the general ARQ
+ * engine, in one counting the rows it returns and timing the calls made
+ * to it. Times are inclusive of the operators below. An execution is
+ * single threaded, so the counts are plain fields.
+ */
+class OperatorProfile implements OpExecutorFactory {
+
+    /* longest one line form of a leaf operator */
+    private static final int MAX_LABEL_LENGTH = 160;
+
+    private final Map<Op, Entry> entries = new IdentityHashMap<>();
+    private final List<Entry> order = new ArrayList<>();
+    private int depth = 0;
+
+    @Override
+    public OpExecutor create(ExecutionContext execCxt) {
+        return new ProfilingOpExecutor(execCxt);
+    }
+
+    /**
+     * Append the operators in the order first evaluated, indented by
+     * depth, one per line
+     * @param out Text to append to
+     */
+    void appendTo(StringBuilder out) {
+        for (Entry entry : order) {
+            for (int i = 0; i < entry.depth; i++) {
+                out.append("  ");
+            }
+            out.append(label(entry.op)).append(": ")
+                    .append(entry.rows).append(" rows, ")
+                    .append(String.format("%.3f", entry.nanos / 1e6)).append(" ms, ")
+                    .append(entry.executions).append(" executions\n");
+        }
+    }
+
+    private static String label(Op op) {
+        if (!(op instanceof Op0)) {
+            return op.getName();
+        }
+        String label = op.toString().replaceAll("\\s+", " ").trim();
+        return label.length() > MAX_LABEL_LENGTH ? label.substring(0, MAX_LABEL_LENGTH) + "..." : label;
+    }
+
+    private Entry entry(Op op) {
+        Entry entry = entries.get(op);
+        if (entry == null) {
+            entry = new Entry(op, depth);
+            entries.put(op, entry);
+            order.add(entry);
+        }
+        return entry;
+    }
+
+    private static class Entry {
+
+        private final Op op;
+        private final int depth;
+        private long executions = 0;
+        private long rows = 0;
+        private long nanos = 0;
+
+        Entry(Op op, int depth) {
+            this.op = op;
+            this.depth = depth;
+        }
+    }
+
+    /*
+     * TDB executor, falling back to the general ARQ one for datasets
+     * other than TDB, wrapping the iterator of each operator
+     */
+    private class ProfilingOpExecutor extends OpExecutorTDB1 {
+
+        ProfilingOpExecutor(ExecutionContext execCxt) {
+            super(execCxt);
+        }
+
+        @Override
+        protected QueryIterator exec(Op op, QueryIterator input) {
+            Entry entry = entry(op);
+            depth++;
+            long start = System.nanoTime();
+            try {
+                QueryIterator iterator = super.exec(op, input);
+                entry.executions++;
+                entry.nanos += System.nanoTime() - start;
+                return new ProfiledIterator(iterator, entry);
+            } finally {
+                depth--;
+            }
+        }
+    }
+
+    private static class ProfiledIterator extends QueryIteratorWrapper {
+
+        private final Entry entry;
+
+        ProfiledIterator(QueryIterator iterator, Entry entry) {
+            super(iterator);
+            this.entry = entry;
+        }
+
+        @Override
+        protected boolean hasNextBinding() {
+            long start = System.nanoTime();
+            try {
+                return super.hasNextBinding();
+            } finally {
+                entry.nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        protected Binding moveToNextBinding() {
+            long start = System.nanoTime();
+            try {
+                Binding binding = super.moveToNextBinding();
+                entry.rows++;
+                return binding;
+            } finally {
+                entry.nanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,353 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.Quad;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.collections.Collection;
+import org.exist.dom.persistent.DefaultDocumentSet;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.IndexSpec;
+import org.exist.storage.btree.DBException;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * Rebuilds the RDF index of a collection tree in parallel. Documents are
+ * parsed to triples by a pool of threads, each with its own broker and
+ * parser, and the triples are written to their TDB stores by the calling
+ * thread in large write transactions, or, for stores that are empty or
+ * replaced, with the TDB bulk loader.
+ */
+class ParallelReindexer {
+
+    private static final Logger LOG = LogManager.getLogger(ParallelReindexer.class);
+
+    /** documents written per write transaction */
+    private static final int COMMIT_DOCUMENTS = 1000;
+    /** triples written per write transaction */
+    private static final long COMMIT_TRIPLES = 500000;
+    private static final int PROGRESS_DOCUMENTS = 1000;
+
+    private final TDBRDFIndex index;
+    private final int threads;
+    private final boolean replace;
+
+    /* the triples of one document, or a failure to parse it */
+    private static class DocumentTriples {
+        final TDBStore store;
+        final String graphURI;
+        /** id of the document in the side table, or NO_SOURCE */
+        final int source;
+        /** the graph holds the triples of this document only */
+        final boolean documentGraph;
+        /** the graph may hold triples of documents not reindexed */
+        final boolean sharedGraph;
+        final List<Triple> triples;
+
+        DocumentTriples(TDBStore store, String graphURI, int source, RDFIndexConfig.GraphNaming naming, List<Triple> triples) {
+            this.store = store;
+            this.graphURI = graphURI;
+            this.source = source;
+            this.documentGraph = naming == RDFIndexConfig.GraphNaming.DOCUMENT;
+            this.sharedGraph = naming == RDFIndexConfig.GraphNaming.SHARED;
+            this.triples = triples;
+        }
+    }
+
+    /**
+     * @param index The RDF index
+     * @param threads Number of parser threads
+     * @param replace True to replace the whole index content using the bulk loader
+     */
+    ParallelReindexer(TDBRDFIndex index, int threads, boolean replace) {
+        this.index = index;
+        this.threads = Math.max(1, threads);
+        this.replace = replace;
+    }
+
+    /* writer stage */
+    private interface Writer extends AutoCloseable {
+        void write(DocumentTriples documentTriples) throws IOException, DBException;
+
+        void finish() throws IOException, DBException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /*
+     * Writes to a store in write transactions of several documents
+     */
+    private static class IncrementalWriter implements Writer {
+        private final TDBStore store;
+        private DatasetDelta changes = new DatasetDelta();
+        /** collection graphs dropped, before adding the triples of their first document */
+        private final Set<String> dropped = new HashSet<>();
+
+        IncrementalWriter(TDBStore store) {
+            this.store = store;
+        }
+
+        /*
+         * A document that failed to parse leaves its graph as it was; a
+         * collection graph is only rebuilt from its first parsed document
+         */
+        @Override
+        public void write(DocumentTriples documentTriples) {
+            if (documentTriples.triples == null) {
+                return;
+            }
+            if (documentTriples.documentGraph) {
+                changes.drop(documentTriples.graphURI);
+            } else if (!documentTriples.sharedGraph && dropped.add(documentTriples.graphURI)) {
+                changes.dropSourced(documentTriples.graphURI);
+            }
+            changes.add(documentTriples.graphURI, documentTriples.source, documentTriples.triples);
+            if (changes.getDocuments() >= COMMIT_DOCUMENTS || changes.getTriples() >= COMMIT_TRIPLES) {
+                finish();
+            }
+        }
+
+        @Override
+        public void finish() {
+            store.getWriteBatch().add(changes, null);
+            changes = new DatasetDelta();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /*
+     * Writes all triples of a store, and their side table entries, to
+     * N-Quads files, then bulk loads them
+     */
+    private static class BulkLoadWriter implements Writer {
+        private final TDBStore store;
+        private final boolean replace;
+        private final Path file;
+        private final Path sourcesFile;
+        private final OutputStream os;
+        private final OutputStream sourcesOs;
+        private final StreamRDF out;
+        private final StreamRDF sourcesOut;
+
+        BulkLoadWriter(TDBStore store, boolean replace) throws IOException {
+            this.store = store;
+            this.replace = replace;
+            // next to the store, the file can be as large as the store
+            file = Files.createTempFile(store.getRoot(), "rdf-index-bulk", ".nq");
+            sourcesFile = Files.createTempFile(store.getRoot(), "rdf-index-bulk-sources", ".nq");
+            os = new BufferedOutputStream(Files.newOutputStream(file));
+            sourcesOs = new BufferedOutputStream(Files.newOutputStream(sourcesFile));
+            out = StreamRDFWriter.getWriterStream(os, Lang.NQUADS);
+            sourcesOut = StreamRDFWriter.getWriterStream(sourcesOs, Lang.NQUADS);
+            out.start();
+            sourcesOut.start();
+        }
+
+        @Override
+        public void write(DocumentTriples documentTriples) {
+            if (documentTriples.triples != null) {
+                Node graph = NodeFactory.createURI(documentTriples.graphURI);
+                Node document = documentTriples.source != DatasetDelta.NO_SOURCE
+                        ? TripleSources.document(documentTriples.source) : null;
+                for (Triple t : documentTriples.triples) {
+                    out.quad(new Quad(graph, t));
+                    if (document != null) {
+                        sourcesOut.quad(TripleSources.quad(graph, document, t));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void finish() throws IOException, DBException {
+            out.finish();
+            sourcesOut.finish();
+            os.close();
+            sourcesOs.close();
+            store.bulkLoad(file, sourcesFile, replace);
+        }
+
+        @Override
+        public void close() throws IOException {
+            os.close();
+            sourcesOs.close();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(sourcesFile);
+        }
+    }
+
+    /**
+     * Reindex the RDF indexed documents of a collection and its descendants.
+     * @param broker Broker of the calling thread
+     * @param collection Collection to reindex
+     * @return Number of documents reindexed
+     * @throws org.exist.security.PermissionDeniedException Collection not readable
+     * @throws java.lang.InterruptedException Interrupted while waiting for parser threads
+     * @throws java.io.IOException Failed to write the bulk load file
+     * @throws org.exist.storage.btree.DBException Bulk load failed
+     */
+    long reindex(DBBroker broker, Collection collection) throws PermissionDeniedException, InterruptedException, IOException, DBException {
+        List<DocumentImpl> docs = new ArrayList<>();
+        for (Iterator<DocumentImpl> it = collection.allDocs(broker, new DefaultDocumentSet(), true).getDocumentIterator(); it.hasNext();) {
+            DocumentImpl doc = it.next();
+            if (doc.getResourceType() == DocumentImpl.XML_FILE && getIndexConfig(broker, doc.getCollection()) != null) {
+                docs.add(doc);
+            }
+        }
+        LOG.info("Reindexing " + docs.size() + " documents of " + collection.getURI() + " using " + threads + " threads");
+        long start = System.currentTimeMillis();
+
+        final BrokerPool pool = broker.getBrokerPool();
+        final Subject subject = broker.getCurrentSubject();
+        final BlockingQueue<DocumentTriples> parsed = new ArrayBlockingQueue<>(threads * 4);
+        final ThreadLocal<SerializedDocumentParser> parsers = new ThreadLocal<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rdf-index-reindex-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            for (final DocumentImpl doc : docs) {
+                final XmldbURI uri = doc.getURI();
+                final RDFIndexConfig config = getIndexConfig(broker, doc.getCollection());
+                final TDBStore store = index.getStore(config.getStore());
+                final String graphURI = config.getGraphURI(doc);
+                final int source = config.getSource(doc);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Triple> triples = null;
+                        try {
+                            triples = parse(pool, subject, uri, config, parsers);
+                        } catch (Exception e) {
+                            LOG.error("Failed to parse " + uri + " for the RDF index: " + e.getMessage(), e);
+                        } finally {
+                            // the writer takes one result per document, also of a failed one
+                            try {
+                                parsed.put(new DocumentTriples(store, graphURI, source, config.getGraphNaming(), triples));
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+                });
+            }
+
+            // single writer, with a writer stage per store
+            long triples = 0;
+            Map<TDBStore, Writer> writers = new LinkedHashMap<>();
+            try {
+                if (replace) {
+                    // stores without documents are emptied
+                    for (String name : index.getStoreNames()) {
+                        TDBStore store = index.getStore(name);
+                        writers.put(store, new BulkLoadWriter(store, true));
+                    }
+                }
+                for (int i = 1; i <= docs.size(); i++) {
+                    DocumentTriples documentTriples = parsed.take();
+                    Writer writer = writers.get(documentTriples.store);
+                    if (writer == null) {
+                        writer = replace || documentTriples.store.isEmpty()
+                                ? new BulkLoadWriter(documentTriples.store, replace) : new IncrementalWriter(documentTriples.store);
+                        writers.put(documentTriples.store, writer);
+                    }
+                    writer.write(documentTriples);
+                    if (documentTriples.triples != null) {
+                        triples += documentTriples.triples.size();
+                    }
+                    if (i % PROGRESS_DOCUMENTS == 0) {
+                        LOG.info(progress(i, docs.size(), triples, start));
+                    }
+                }
+                for (Writer writer : writers.values()) {
+                    writer.finish();
+                }
+            } finally {
+                for (Writer writer : writers.values()) {
+                    writer.close();
+                }
+            }
+            LOG.info("Reindexed " + progress(docs.size(), docs.size(), triples, start));
+
+        } finally {
+            executor.shutdownNow();
+        }
+        return docs.size();
+    }
+
+    private static String progress(int done, int total, long triples, long start) {
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        return done + "/" + total + " documents, " + triples + " triples in " + millis + " ms ("
+                + (done * 1000L / millis) + " documents/s)";
+    }
+
+    /*
+     * Parse a document to triples, in a broker of the current thread
+     */
+    private static List<Triple> parse(BrokerPool pool, Subject subject, XmldbURI uri, RDFIndexConfig config,
+            ThreadLocal<SerializedDocumentParser> parsers) throws Exception {
+        SerializedDocumentParser parser = parsers.get();
+        if (parser == null) {
+            parser = new SerializedDocumentParser(pool.getNodeFactory());
+            parsers.set(parser);
+        }
+
+        try (DBBroker broker = pool.get(Optional.of(subject))) {
+            DocumentImpl doc = broker.getXMLResource(uri, LockMode.READ_LOCK);
+            if (doc == null) {
+                return Collections.emptyList();
+            }
+            try {
+                return parser.parse(broker.getSerializer(), doc, config);
+            } finally {
+                doc.getUpdateLock().release(LockMode.READ_LOCK);
+            }
+        }
+    }
+
+    private static RDFIndexConfig getIndexConfig(DBBroker broker, Collection collection) {
+        IndexSpec indexConf = collection.getIndexConfiguration(broker);
+        return indexConf == null ? null : (RDFIndexConfig) indexConf.getCustomIndexSpec(RDFIndex.ID);
+    }
+
+}
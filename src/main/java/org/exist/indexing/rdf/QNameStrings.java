@@ -0,0 +1,46 @@
+package org.exist.indexing.rdf;
+
+import org.exist.dom.QName;
+
+/**
+ * Cache of the prefixed names of elements and attributes, keyed on their
+ * namespace, local name and prefix, so that streaming a node does not build
+ * a new name String. Direct mapped: a name replaces any other name in its
+ * slot. Each stream listener has its own, nothing is shared between threads.
+ */
+final class QNameStrings {
+
+    /* number of slots, a power of 2 */
+    private static final int SIZE = 1024;
+
+    private final QName[] keys = new QName[SIZE];
+    private final String[] names = new String[SIZE];
+
+    /**
+     * @param qname Name of an element or attribute
+     * @return The name as prefix:localName, or localName without a prefix
+     */
+    String get(QName qname) {
+        String prefix = qname.getPrefix();
+        if (prefix == null || prefix.isEmpty()) {
+            return qname.getLocalPart();
+        }
+
+        int hash = qname.getLocalPart().hashCode() * 31 + prefix.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+        QName key = keys[slot];
+        if (key != qname && (key == null
+                || !key.getLocalPart().equals(qname.getLocalPart())
+                || !key.getPrefix().equals(prefix)
+                || !equals(key.getNamespaceURI(), qname.getNamespaceURI()))) {
+            keys[slot] = qname;
+            names[slot] = qname.getStringValue();
+        }
+        return names[slot];
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
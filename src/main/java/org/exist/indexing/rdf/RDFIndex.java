@@ -1,6 +1,5 @@
 package org.exist.indexing.rdf;
 
-import java.util.HashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.indexing.AbstractIndex;
@@ -14,11 +13,11 @@ public abstract class RDFIndex extends AbstractIndex {
 
     public final static String ID = RDFIndex.class.getName();
     private final static Logger LOG = LogManager.getLogger(RDFIndex.class);
-    protected HashMap workers = new HashMap();
 
     @Override
     public boolean checkIndex(DBBroker broker) {
-        return getWorker(broker).checkIndex(broker);
+        // the worker of the broker, rather than a new one
+        return broker.getIndexController().getWorkerByIndexId(getIndexId()).checkIndex(broker);
     }
     
     @Override
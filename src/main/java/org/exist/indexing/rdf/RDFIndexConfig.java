@@ -1,7 +1,18 @@
 package org.exist.indexing.rdf;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.exist.dom.QName;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.storage.NodePath;
+import org.exist.util.DatabaseConfigurationException;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 /**
  *
@@ -9,13 +20,359 @@ import org.w3c.dom.Element;
  */
 public class RDFIndexConfig {
 
-    public RDFIndexConfig(Element configElement, Map<String, String> namespaces) {
+    private final static String BATCH_DOCUMENTS_ATTR = "batchDocuments";
+    private final static String BATCH_TRIPLES_ATTR = "batchTriples";
+    private final static String BATCH_MILLIS_ATTR = "batchMillis";
+    private final static long DEFAULT_BATCH_MILLIS = 10000;
+    private final static String INCLUDE_ELEMENT = "include";
+    private final static String EXCLUDE_ELEMENT = "exclude";
+    private final static String ALLOW_ELEMENT = "allow";
+    private final static String DENY_ELEMENT = "deny";
+    private final static String QNAME_ATTR = "qname";
+    private final static String PATH_ATTR = "path";
+    private final static String PREDICATE_ATTR = "predicate";
+    private final static String GRAPH_ATTR = "graph";
+    private final static String GRAPH_URI_ATTR = "graphURI";
+    private final static String SHARDS_ATTR = "shards";
+    private final static String STORE_ATTR = "store";
+    private final static Pattern STORE_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+    private final static int DEFAULT_SHARDS = 16;
+
+    /**
+     * Named graphs the triples of a document are stored in
+     */
+    public enum GraphNaming {
+        /** a graph per document, named by the document URI */
+        DOCUMENT,
+        /** a graph per collection, named by the collection URI */
+        COLLECTION,
+        /** one graph for all documents, named by the graphURI attribute */
+        SHARED,
+        /**
+         * graphs per collection, as many as the shards attribute gives,
+         * named by the collection URI with a fragment #shard-n
+         */
+        SHARD
+    }
+
+    /* write batching, off unless one of the batch attributes is given */
+    private boolean batched = false;
+    private int batchDocuments = 1;
+    private long batchTriples = Long.MAX_VALUE;
+    private long batchMillis = 0;
+
+    /* roots of the RDF/XML islands of a document, the whole document if none */
+    private ElementMatcher includes = new ElementMatcher();
+    /* elements not indexed, with their descendants */
+    private ElementMatcher excludes = new ElementMatcher();
+    private PredicateMatcher allowedPredicates = new PredicateMatcher();
+    private PredicateMatcher deniedPredicates = new PredicateMatcher();
+    private GraphNaming graphNaming = GraphNaming.DOCUMENT;
+    private String sharedGraphURI = null;
+    private int shards = DEFAULT_SHARDS;
+    private String store = TDBRDFIndex.DEFAULT_STORE;
+
+    public RDFIndexConfig(Element configElement, Map<String, String> namespaces) throws DatabaseConfigurationException {
+        for (Node child = configElement.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            Element element = (Element) child;
+            switch (child.getLocalName()) {
+                case INCLUDE_ELEMENT:
+                    includes.add(element, namespaces);
+                    break;
+                case EXCLUDE_ELEMENT:
+                    excludes.add(element, namespaces);
+                    break;
+                case ALLOW_ELEMENT:
+                    allowedPredicates.add(element);
+                    break;
+                case DENY_ELEMENT:
+                    deniedPredicates.add(element);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        String graph = configElement.getAttribute(GRAPH_ATTR);
+        if (!graph.isEmpty()) {
+            try {
+                graphNaming = GraphNaming.valueOf(graph.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new DatabaseConfigurationException("Invalid value for " + GRAPH_ATTR + ": " + graph);
+            }
+        }
+        if (graphNaming == GraphNaming.SHARED) {
+            sharedGraphURI = configElement.getAttribute(GRAPH_URI_ATTR);
+            if (sharedGraphURI.isEmpty()) {
+                throw new DatabaseConfigurationException(GRAPH_URI_ATTR + " is required for " + GRAPH_ATTR + "=\"shared\"");
+            }
+        }
+        if (graphNaming == GraphNaming.SHARD) {
+            shards = (int) Math.min(parseLong(configElement, SHARDS_ATTR, DEFAULT_SHARDS), Integer.MAX_VALUE);
+        }
+
+        if (configElement.hasAttribute(STORE_ATTR)) {
+            store = configElement.getAttribute(STORE_ATTR);
+            if (!STORE_NAME.matcher(store).matches()) {
+                throw new DatabaseConfigurationException("Invalid value for " + STORE_ATTR + ", letters, digits, _ and - only: " + store);
+            }
+        }
+
+        if (configElement.hasAttribute(BATCH_DOCUMENTS_ATTR) || configElement.hasAttribute(BATCH_TRIPLES_ATTR)
+                || configElement.hasAttribute(BATCH_MILLIS_ATTR)) {
+            batched = true;
+            batchDocuments = (int) Math.min(parseLong(configElement, BATCH_DOCUMENTS_ATTR, Integer.MAX_VALUE), Integer.MAX_VALUE);
+            batchTriples = parseLong(configElement, BATCH_TRIPLES_ATTR, Long.MAX_VALUE);
+            batchMillis = parseLong(configElement, BATCH_MILLIS_ATTR, DEFAULT_BATCH_MILLIS);
+        }
     }
 
     /*
      * Copy contructor
      */
     RDFIndexConfig(RDFIndexConfig config) {
+        this.batched = config.batched;
+        this.batchDocuments = config.batchDocuments;
+        this.batchTriples = config.batchTriples;
+        this.batchMillis = config.batchMillis;
+        this.includes = config.includes;
+        this.excludes = config.excludes;
+        this.allowedPredicates = config.allowedPredicates;
+        this.deniedPredicates = config.deniedPredicates;
+        this.graphNaming = config.graphNaming;
+        this.sharedGraphURI = config.sharedGraphURI;
+        this.shards = config.shards;
+        this.store = config.store;
+    }
+
+    /**
+     * @return True if only RDF/XML islands of documents are indexed
+     */
+    public boolean hasIncludes() {
+        return !includes.isEmpty();
+    }
+
+    /**
+     * @param path Path of an element
+     * @return True if the element is the root of an RDF/XML island
+     */
+    public boolean isIncluded(NodePath path) {
+        return includes.matches(path);
+    }
+
+    /**
+     * @param path Path of an element
+     * @return True if the element and its descendants are not indexed
+     */
+    public boolean isExcluded(NodePath path) {
+        return !excludes.isEmpty() && excludes.matches(path);
+    }
+
+    /**
+     * @param predicateURI URI of a predicate
+     * @return True if triples with the predicate are indexed
+     */
+    public boolean isIndexed(String predicateURI) {
+        return (allowedPredicates.isEmpty() || allowedPredicates.matches(predicateURI))
+                && (deniedPredicates.isEmpty() || !deniedPredicates.matches(predicateURI));
+    }
+
+    /**
+     * @return Named graphs the triples of documents are stored in
+     */
+    public GraphNaming getGraphNaming() {
+        return graphNaming;
+    }
+
+    /**
+     * @param doc Indexed document
+     * @return URI of the named graph the triples of the document are stored in
+     */
+    public String getGraphURI(DocumentImpl doc) {
+        switch (graphNaming) {
+            case COLLECTION:
+                return doc.getCollection().getURI().toString();
+            case SHARED:
+                return sharedGraphURI;
+            case SHARD:
+                return shardURI(doc.getCollection().getURI().toString(), doc.getDocId() % shards);
+            default:
+                return doc.getDocumentURI();
+        }
+    }
+
+    /**
+     * @param collectionURI URI of a collection
+     * @return URIs of the named graphs holding the triples of the collection
+     * only, none if its documents have graphs of their own or share a graph
+     * with other collections
+     */
+    public List<String> getCollectionGraphURIs(String collectionURI) {
+        List<String> uris = new ArrayList<>();
+        if (graphNaming == GraphNaming.COLLECTION) {
+            uris.add(collectionURI);
+        } else if (graphNaming == GraphNaming.SHARD) {
+            for (int i = 0; i < shards; i++) {
+                uris.add(shardURI(collectionURI, i));
+            }
+        }
+        return uris;
+    }
+
+    /**
+     * Graphs shared by several documents record which document states which
+     * triple in a side table, for removing the triples of a document.
+     * @param doc Indexed document
+     * @return Id of the document in the side table, or
+     * {@link DatasetDelta#NO_SOURCE} if the document has a graph of its own
+     */
+    int getSource(DocumentImpl doc) {
+        return graphNaming == GraphNaming.DOCUMENT ? DatasetDelta.NO_SOURCE : doc.getDocId();
+    }
+
+    private static String shardURI(String collectionURI, int shard) {
+        return collectionURI + "#shard-" + shard;
+    }
+
+    /**
+     * @return Name of the TDB store the triples of documents are stored in
+     */
+    public String getStore() {
+        return store;
+    }
+
+    /**
+     * @return True if changes of several documents are written to TDB together
+     */
+    public boolean isBatched() {
+        return batched;
+    }
+
+    /**
+     * @return Number of documents after which a batch is written
+     */
+    public int getBatchDocuments() {
+        return batchDocuments;
+    }
+
+    /**
+     * @return Number of changed triples after which a batch is written
+     */
+    public long getBatchTriples() {
+        return batchTriples;
+    }
+
+    /**
+     * @return Time in milliseconds after which a batch is written
+     */
+    public long getBatchMillis() {
+        return batchMillis;
+    }
+
+    private static long parseLong(Element element, String name, long defaultValue) throws DatabaseConfigurationException {
+        String value = element.getAttribute(name);
+        if (value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            long l = Long.parseLong(value.trim());
+            if (l <= 0) {
+                throw new DatabaseConfigurationException("Value for " + name + " must be positive: " + value);
+            }
+            return l;
+        } catch (NumberFormatException e) {
+            throw new DatabaseConfigurationException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    /*
+     * Elements given by qname or path attributes
+     */
+    private static class ElementMatcher {
+        private final List<QName> qnames = new ArrayList<>();
+        private final List<NodePath> paths = new ArrayList<>();
+
+        void add(Element element, Map<String, String> namespaces) throws DatabaseConfigurationException {
+            if (element.hasAttribute(QNAME_ATTR)) {
+                qnames.add(parseQName(element.getAttribute(QNAME_ATTR), namespaces));
+            } else if (element.hasAttribute(PATH_ATTR)) {
+                paths.add(new NodePath(namespaces, element.getAttribute(PATH_ATTR)));
+            } else {
+                throw new DatabaseConfigurationException("rdf " + element.getLocalName() + " needs a qname or path attribute");
+            }
+        }
+
+        boolean isEmpty() {
+            return qnames.isEmpty() && paths.isEmpty();
+        }
+
+        boolean matches(NodePath path) {
+            if (!qnames.isEmpty()) {
+                QName qname = path.getLastComponent();
+                for (int i = 0; i < qnames.size(); i++) {
+                    if (qnames.get(i).equals(qname)) {
+                        return true;
+                    }
+                }
+            }
+            for (int i = 0; i < paths.size(); i++) {
+                if (paths.get(i).match(path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static QName parseQName(String name, Map<String, String> namespaces) throws DatabaseConfigurationException {
+            String prefix = QName.extractPrefix(name);
+            String ns = "";
+            if (prefix != null) {
+                ns = namespaces.get(prefix);
+                if (ns == null) {
+                    throw new DatabaseConfigurationException("No namespace defined for prefix: " + prefix + " in " + name);
+                }
+            }
+            return new QName(QName.extractLocalName(name), ns, prefix);
+        }
+    }
+
+    /*
+     * Predicates given by predicate attributes, as URIs or, ending with / or #, as namespaces
+     */
+    private static class PredicateMatcher {
+        private final Set<String> uris = new HashSet<>();
+        private final List<String> namespaces = new ArrayList<>();
+
+        void add(Element element) throws DatabaseConfigurationException {
+            String predicate = element.getAttribute(PREDICATE_ATTR);
+            if (predicate.isEmpty()) {
+                throw new DatabaseConfigurationException("rdf " + element.getLocalName() + " needs a predicate attribute");
+            }
+            if (predicate.endsWith("/") || predicate.endsWith("#")) {
+                namespaces.add(predicate);
+            } else {
+                uris.add(predicate);
+            }
+        }
+
+        boolean isEmpty() {
+            return uris.isEmpty() && namespaces.isEmpty();
+        }
+
+        boolean matches(String uri) {
+            if (uris.contains(uri)) {
+                return true;
+            }
+            for (int i = 0; i < namespaces.size(); i++) {
+                if (uri.startsWith(namespaces.get(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
 }
@@ -0,0 +1,200 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.query.Query;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of the work done by the RDF index, recorded
+ * with lock-free adds so that they can stay on in production. Registered
+ * as an MXBean while the index is open, and returned by sparql:stats().
+ */
+public class RDFIndexMetrics implements RDFIndexMetricsMXBean {
+
+    /**
+     * Query types, by which query times and result sizes are kept.
+     */
+    public enum QueryType {
+        SELECT, ASK, CONSTRUCT, DESCRIBE;
+
+        static QueryType of(Query q) {
+            if (q.isAskType()) {
+                return ASK;
+            } else if (q.isConstructType()) {
+                return CONSTRUCT;
+            } else if (q.isDescribeType()) {
+                return DESCRIBE;
+            }
+            return SELECT;
+        }
+    }
+
+    private final TDBRDFIndex index;
+
+    private final LongAdder documentsIndexed = new LongAdder();
+    private final LongAdder documentsRemoved = new LongAdder();
+    private final LongAdder triplesAdded = new LongAdder();
+    private final LongAdder triplesRemoved = new LongAdder();
+    private final Histogram flushTime = new Histogram();
+    private final Histogram flushSize = new Histogram();
+    private final Histogram bulkLoadTime = new Histogram();
+    private final Histogram queryPrepareTime = new Histogram();
+    private final Histogram[] queryExecTime = histograms();
+    private final Histogram[] queryResultTime = histograms();
+    private final Histogram[] queryResultSize = histograms();
+    private final LongAdder activeReaders = new LongAdder();
+    private final LongAdder activeWriters = new LongAdder();
+
+    RDFIndexMetrics(TDBRDFIndex index) {
+        this.index = index;
+    }
+
+    private static Histogram[] histograms() {
+        Histogram[] histograms = new Histogram[QueryType.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+        return histograms;
+    }
+
+    void documentsIndexed(long documents) {
+        documentsIndexed.add(documents);
+    }
+
+    void documentRemoved() {
+        documentsRemoved.increment();
+    }
+
+    /**
+     * @param added Triples added
+     * @param removed Triples removed
+     * @param nanos Duration of the write transaction
+     */
+    void flushed(long added, long removed, long nanos) {
+        triplesAdded.add(added);
+        triplesRemoved.add(removed);
+        flushSize.record(added + removed);
+        flushTime.record(nanos / 1000);
+    }
+
+    void bulkLoaded(long nanos) {
+        bulkLoadTime.record(nanos / 1000);
+    }
+
+    void queryPrepared(long nanos) {
+        queryPrepareTime.record(nanos / 1000);
+    }
+
+    /**
+     * @param type Type of the query
+     * @param execNanos Time to start the execution
+     * @param resultNanos Time to evaluate and write the result
+     * @param size Solutions or triples of the result
+     */
+    void queryExecuted(QueryType type, long execNanos, long resultNanos, long size) {
+        queryExecTime[type.ordinal()].record(execNanos / 1000);
+        queryResultTime[type.ordinal()].record(resultNanos / 1000);
+        queryResultSize[type.ordinal()].record(size);
+    }
+
+    void readerStarted() {
+        activeReaders.increment();
+    }
+
+    void readerEnded() {
+        activeReaders.decrement();
+    }
+
+    void writerStarted() {
+        activeWriters.increment();
+    }
+
+    void writerEnded() {
+        activeWriters.decrement();
+    }
+
+    @Override
+    public long getDocumentsIndexed() {
+        return documentsIndexed.sum();
+    }
+
+    @Override
+    public long getDocumentsRemoved() {
+        return documentsRemoved.sum();
+    }
+
+    @Override
+    public long getTriplesAdded() {
+        return triplesAdded.sum();
+    }
+
+    @Override
+    public long getTriplesRemoved() {
+        return triplesRemoved.sum();
+    }
+
+    @Override
+    public Histogram.Snapshot getFlushTime() {
+        return flushTime.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getFlushSize() {
+        return flushSize.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getBulkLoadTime() {
+        return bulkLoadTime.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getQueryPrepareTime() {
+        return queryPrepareTime.getSnapshot();
+    }
+
+    @Override
+    public Map<String, Histogram.Snapshot> getQueryExecTime() {
+        return snapshots(queryExecTime);
+    }
+
+    @Override
+    public Map<String, Histogram.Snapshot> getQueryResultTime() {
+        return snapshots(queryResultTime);
+    }
+
+    @Override
+    public Map<String, Histogram.Snapshot> getQueryResultSize() {
+        return snapshots(queryResultSize);
+    }
+
+    private static Map<String, Histogram.Snapshot> snapshots(Histogram[] histograms) {
+        Map<String, Histogram.Snapshot> snapshots = new LinkedHashMap<>();
+        for (QueryType type : QueryType.values()) {
+            snapshots.put(type.name().toLowerCase(), histograms[type.ordinal()].getSnapshot());
+        }
+        return snapshots;
+    }
+
+    @Override
+    public long getActiveReaders() {
+        return activeReaders.sum();
+    }
+
+    @Override
+    public long getActiveWriters() {
+        return activeWriters.sum();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return index.getQueueDepth();
+    }
+
+    @Override
+    public Map<String, Long> getStoreSizes() {
+        return index.getStoreSizes();
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.exist.indexing.rdf;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link RDFIndexMetrics} of the RDF index. Times are in
+ * microseconds.
+ */
+public interface RDFIndexMetricsMXBean {
+
+    /**
+     * @return Documents whose triples were indexed, by updates or reindexing
+     */
+    long getDocumentsIndexed();
+
+    /**
+     * @return Documents whose triples were removed from the index
+     */
+    long getDocumentsRemoved();
+
+    /**
+     * @return Triples written to TDB
+     */
+    long getTriplesAdded();
+
+    /**
+     * @return Triples deleted from TDB
+     */
+    long getTriplesRemoved();
+
+    /**
+     * @return Duration of the write transactions applying pending changes to TDB
+     */
+    Histogram.Snapshot getFlushTime();
+
+    /**
+     * @return Triples added and removed per write transaction
+     */
+    Histogram.Snapshot getFlushSize();
+
+    /**
+     * @return Duration of TDB bulk loads
+     */
+    Histogram.Snapshot getBulkLoadTime();
+
+    /**
+     * @return Time to get parsed queries, from the query cache or by parsing
+     */
+    Histogram.Snapshot getQueryPrepareTime();
+
+    /**
+     * @return Time to start query executions, by query type
+     */
+    Map<String, Histogram.Snapshot> getQueryExecTime();
+
+    /**
+     * @return Time to evaluate and write query results, by query type
+     */
+    Map<String, Histogram.Snapshot> getQueryResultTime();
+
+    /**
+     * @return Solutions or triples per query result, by query type
+     */
+    Map<String, Histogram.Snapshot> getQueryResultSize();
+
+    /**
+     * @return Read transactions open
+     */
+    long getActiveReaders();
+
+    /**
+     * @return Write transactions open
+     */
+    long getActiveWriters();
+
+    /**
+     * @return Committed transactions queued for the background writer
+     */
+    long getQueueDepth();
+
+    /**
+     * @return Size in bytes of the files of each store
+     */
+    Map<String, Long> getStoreSizes();
+
+}
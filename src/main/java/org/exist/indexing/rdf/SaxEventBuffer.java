@@ -0,0 +1,199 @@
+package org.exist.indexing.rdf;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Forwards SAX events to another handler while recording them, so they can be
+ * replayed later. Recording stops, and the buffer is marked as overflowed,
+ * once the recorded events exceed a size limit.
+ */
+public class SaxEventBuffer implements ContentHandler {
+
+    private static final byte START_DOCUMENT = 0;
+    private static final byte END_DOCUMENT = 1;
+    private static final byte START_PREFIX_MAPPING = 2;
+    private static final byte END_PREFIX_MAPPING = 3;
+    private static final byte START_ELEMENT = 4;
+    private static final byte END_ELEMENT = 5;
+    private static final byte CHARACTERS = 6;
+
+    private static final Attributes NO_ATTRIBUTES = new AttributesImpl();
+
+    private final ContentHandler next;
+    private final long maxSize;
+    /* recorded events: event type followed by its arguments */
+    private final List<Object> events = new ArrayList<>();
+    private long size = 0;
+    private boolean overflow = false;
+
+    /**
+     * @param next Handler to forward events to
+     * @param maxSize Approximate maximum size of the recorded events in bytes
+     */
+    public SaxEventBuffer(ContentHandler next, long maxSize) {
+        this.next = next;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return Approximate size of the recorded events in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return True if recording stopped as the size limit was reached
+     */
+    public boolean isOverflow() {
+        return overflow;
+    }
+
+    /**
+     * Replay the recorded events.
+     * @param handler Handler receiving the events
+     * @throws org.xml.sax.SAXException Error from handler
+     */
+    public void replay(ContentHandler handler) throws SAXException {
+        int i = 0;
+        while (i < events.size()) {
+            switch ((Byte) events.get(i++)) {
+                case START_DOCUMENT:
+                    handler.startDocument();
+                    break;
+                case END_DOCUMENT:
+                    handler.endDocument();
+                    break;
+                case START_PREFIX_MAPPING:
+                    handler.startPrefixMapping((String) events.get(i++), (String) events.get(i++));
+                    break;
+                case END_PREFIX_MAPPING:
+                    handler.endPrefixMapping((String) events.get(i++));
+                    break;
+                case START_ELEMENT:
+                    handler.startElement((String) events.get(i++), (String) events.get(i++), (String) events.get(i++),
+                            (Attributes) events.get(i++));
+                    break;
+                case END_ELEMENT:
+                    handler.endElement((String) events.get(i++), (String) events.get(i++), (String) events.get(i++));
+                    break;
+                case CHARACTERS:
+                    char[] ch = (char[]) events.get(i++);
+                    handler.characters(ch, 0, ch.length);
+                    break;
+            }
+        }
+    }
+
+    private void record(byte event, Object... args) {
+        if (overflow) {
+            return;
+        }
+        events.add(event);
+        size += 8;
+        for (Object arg : args) {
+            events.add(arg);
+            size += 8 + sizeOf(arg);
+        }
+        if (size > maxSize) {
+            overflow = true;
+            events.clear();
+        }
+    }
+
+    private static long sizeOf(Object arg) {
+        if (arg instanceof String) {
+            // strings are mostly names shared with other events
+            return 0;
+        } else if (arg instanceof char[]) {
+            return 16 + 2 * ((char[]) arg).length;
+        } else if (arg instanceof Attributes) {
+            Attributes atts = (Attributes) arg;
+            long attsSize = 32;
+            for (int i = 0; i < atts.getLength(); i++) {
+                attsSize += 40 + 2 * atts.getValue(i).length();
+            }
+            return attsSize;
+        }
+        return 0;
+    }
+
+    @Override
+    public void setDocumentLocator(Locator locator) {
+        next.setDocumentLocator(locator);
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        record(START_DOCUMENT);
+        next.startDocument();
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        record(END_DOCUMENT);
+        next.endDocument();
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        record(START_PREFIX_MAPPING, prefix, uri);
+        next.startPrefixMapping(prefix, uri);
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+        record(END_PREFIX_MAPPING, prefix);
+        next.endPrefixMapping(prefix);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        // callers reuse their attributes, so record a copy
+        record(START_ELEMENT, uri, localName, qName, atts.getLength() == 0 ? NO_ATTRIBUTES : new AttributesImpl(atts));
+        next.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        record(END_ELEMENT, uri, localName, qName);
+        next.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        recordCharacters(ch, start, length);
+        next.characters(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        recordCharacters(ch, start, length);
+        next.ignorableWhitespace(ch, start, length);
+    }
+
+    private void recordCharacters(char[] ch, int start, int length) {
+        if (!overflow) {
+            char[] copy = new char[length];
+            System.arraycopy(ch, start, copy, 0, length);
+            record(CHARACTERS, (Object) copy);
+        }
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        next.processingInstruction(target, data);
+    }
+
+    @Override
+    public void skippedEntity(String name) throws SAXException {
+        next.skippedEntity(name);
+    }
+
+}
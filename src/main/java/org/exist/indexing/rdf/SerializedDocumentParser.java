@@ -0,0 +1,121 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.graph.Triple;
+import java.util.ArrayList;
+import java.util.List;
+import org.exist.Namespaces;
+import org.exist.dom.QName;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.numbering.NodeId;
+import org.exist.numbering.NodeIdFactory;
+import org.exist.storage.NodePath;
+import org.exist.storage.serializers.EXistOutputKeys;
+import org.exist.storage.serializers.Serializer;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Parses the triples of a stored document from its serialization, where its
+ * nodes are not streamed to the index listener. The serializer adds the node
+ * ids of elements as exist:id attributes, so blank nodes get the same labels
+ * as from the listener.
+ */
+class SerializedDocumentParser extends DefaultHandler {
+
+    private final TripleBuffer buffer = new TripleBuffer();
+    private final DocumentTripleParser triples;
+    private final NodeIdFactory nodeIds;
+    private final AttributesImpl atts = new AttributesImpl();
+    private final NodePath path = new NodePath();
+    private NodeId excluded;
+
+    /**
+     * @param nodeIds Node id factory of the database
+     * @throws org.xml.sax.SAXParseException RDF/XML parser could not be created
+     */
+    SerializedDocumentParser(NodeIdFactory nodeIds) throws SAXParseException {
+        this.nodeIds = nodeIds;
+        triples = new DocumentTripleParser(buffer);
+    }
+
+    /**
+     * Parse a document to triples.
+     * @param serializer Serializer, not in use by anyone else
+     * @param doc Document, locked by the caller
+     * @param config Index configuration of the document
+     * @return Triples of the document
+     * @throws org.xml.sax.SAXException Serialization failed
+     */
+    List<Triple> parse(Serializer serializer, DocumentImpl doc, RDFIndexConfig config) throws SAXException {
+        return parse(serializer, doc, config, null);
+    }
+
+    /**
+     * Parse a document to triples, leaving out a subtree.
+     * @param serializer Serializer, not in use by anyone else
+     * @param doc Document, locked by the caller
+     * @param config Index configuration of the document
+     * @param excluded Node id of the element left out with its descendants, or null
+     * @return Triples of the rest of the document
+     * @throws org.xml.sax.SAXException Serialization failed
+     */
+    List<Triple> parse(Serializer serializer, DocumentImpl doc, RDFIndexConfig config, NodeId excluded) throws SAXException {
+        this.excluded = excluded;
+        triples.startDocument(doc.getDocId(), config);
+        path.reset();
+        try {
+            serializer.reset();
+            serializer.setProperty(EXistOutputKeys.EXPAND_XINCLUDES, "no");
+            serializer.setProperty(EXistOutputKeys.ADD_EXIST_ID, "all");
+            serializer.setSAXHandlers(this, null);
+            serializer.toSAX(doc);
+
+            return new ArrayList<>(buffer);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+        int colon = qName.indexOf(':');
+        path.addComponent(new QName(localName, uri, colon > 0 ? qName.substring(0, colon) : null));
+        if (!triples.isParsed(path)) {
+            triples.skipElement();
+            return;
+        }
+        atts.clear();
+        String nodeId = null;
+        for (int i = 0; i < attributes.getLength(); i++) {
+            if (Namespaces.EXIST_NS.equals(attributes.getURI(i))) {
+                if ("id".equals(attributes.getLocalName(i))) {
+                    nodeId = attributes.getValue(i);
+                }
+            } else {
+                atts.addAttribute(attributes.getURI(i), attributes.getLocalName(i), attributes.getQName(i),
+                        attributes.getType(i), attributes.getValue(i));
+            }
+        }
+        NodeId id = nodeId == null ? null : nodeIds.createFromString(nodeId);
+        if (id != null && id.equals(excluded)) {
+            triples.excludeElement();
+            return;
+        }
+        triples.startElement(uri, localName, qName, atts, id);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        triples.endElement(uri, localName, qName);
+        path.removeLastComponent();
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        triples.characters(ch, start, length);
+    }
+
+}
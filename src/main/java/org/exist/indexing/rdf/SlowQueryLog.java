@@ -0,0 +1,165 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.engine.main.QC;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.source.Source;
+import org.exist.xquery.XQueryContext;
+
+/**
+ * Log of the SPARQL query executions slower than a threshold, written at
+ * INFO level to the logger of this class, so log4j can route it to a file
+ * of its own. An entry has the time taken, how the execution ended, the
+ * XQuery calling the query, the query text and its optimized algebra.
+ * Executions cancelled or stopped by the result limit are logged too,
+ * as they are often the slowest.
+ * <p>
+ * One in every sample executions is also profiled while it runs, see
+ * {@link OperatorProfile}; the entry of a slow profiled execution lists
+ * the row counts and times of its operators. Executions not profiled only
+ * cost a clock reading, and only slow ones are logged.
+ */
+class SlowQueryLog {
+
+    private static final Logger LOG = LogManager.getLogger(SlowQueryLog.class);
+
+    /* longest XQuery source key logged, string sources have their text as key */
+    private static final int MAX_SOURCE_LENGTH = 200;
+
+    /**
+     * How an execution ended
+     */
+    enum Outcome {
+        COMPLETED("completed"),
+        CANCELLED("was cancelled"),
+        LIMITED("exceeded the result limit"),
+        FAILED("failed");
+
+        private final String text;
+
+        Outcome(String text) {
+            this.text = text;
+        }
+    }
+
+    private final long thresholdNanos;
+    private final int sample;
+    private final AtomicLong executions = new AtomicLong();
+
+    /**
+     * @param threshold Time in milliseconds beyond which executions are logged, 0 to log none
+     * @param sample Profile one in this many executions, 0 for none
+     */
+    SlowQueryLog(long threshold, int sample) {
+        this.thresholdNanos = threshold * 1000000L;
+        this.sample = sample;
+    }
+
+    /**
+     * Start watching an execution, before it is run
+     * @param context Context of the calling XQuery
+     * @param q Query
+     * @param qe Execution of q, not yet run
+     * @return The watched execution, or null if slow queries are not logged
+     */
+    Execution begin(XQueryContext context, Query q, QueryExecution qe) {
+        if (thresholdNanos <= 0 || !LOG.isInfoEnabled()) {
+            return null;
+        }
+        OperatorProfile profile = null;
+        if (sample > 0 && executions.getAndIncrement() % sample == 0) {
+            profile = new OperatorProfile();
+            QC.setFactory(qe.getContext(), profile);
+        }
+        return new Execution(context, q, profile);
+    }
+
+    /**
+     * An execution watched for slowness.
+     */
+    class Execution {
+
+        private final XQueryContext context;
+        private final Query q;
+        private final OperatorProfile profile;
+        private final long start = System.nanoTime();
+        private boolean ended = false;
+
+        private Execution(XQueryContext context, Query q, OperatorProfile profile) {
+            this.context = context;
+            this.q = q;
+            this.profile = profile;
+        }
+
+        /**
+         * @return True if the operators of the execution are profiled
+         */
+        boolean isProfiled() {
+            return profile != null;
+        }
+
+        /**
+         * Log the execution if it was slow
+         * @param outcome How the execution ended
+         * @param execNanos Time until the first solution or triple, -1 if unknown
+         * @param size Number of solutions or triples of the result, -1 if unknown
+         * @return True if logged
+         */
+        boolean end(Outcome outcome, long execNanos, long size) {
+            if (ended) {
+                return false;
+            }
+            ended = true;
+            long nanos = System.nanoTime() - start;
+            if (nanos < thresholdNanos) {
+                return false;
+            }
+            LOG.info(entry(outcome, nanos, execNanos, size));
+            return true;
+        }
+
+        /**
+         * Log the execution if it was slow and ended by an exception,
+         * unless {@link #end} was called already
+         * @param outcome How the execution ended
+         */
+        void abort(Outcome outcome) {
+            end(outcome, -1, -1);
+        }
+
+        /*
+         * Text of the log entry of the execution
+         */
+        String entry(Outcome outcome, long nanos, long execNanos, long size) {
+            StringBuilder entry = new StringBuilder();
+            entry.append("SPARQL query ").append(outcome.text).append(" after ").append(nanos / 1000000L).append(" ms");
+            if (execNanos >= 0) {
+                entry.append(" (execution ").append(execNanos / 1000000L).append(" ms, result ")
+                        .append((nanos - execNanos) / 1000000L).append(" ms, ")
+                        .append(size).append(" solutions or triples)");
+            }
+            entry.append(", called from ").append(source()).append('\n');
+            entry.append("Query:\n").append(q).append('\n');
+            entry.append("Algebra:\n").append(Algebra.optimize(Algebra.compile(q)));
+            if (profile != null) {
+                entry.append("Operators (rows, inclusive time, executions):\n");
+                profile.appendTo(entry);
+            }
+            return entry.toString();
+        }
+
+        private String source() {
+            Source source = context != null ? context.getSource() : null;
+            if (source == null) {
+                return "unknown XQuery";
+            }
+            String key = String.valueOf(source.getKey());
+            return key.length() > MAX_SOURCE_LENGTH ? key.substring(0, MAX_SOURCE_LENGTH) + "..." : key;
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.QueryCancelledException;
+import com.hp.hpl.jena.query.QueryException;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.ResultSet;
+import java.util.concurrent.Future;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.EmptySequence;
+import org.exist.xquery.value.Sequence;
+
+/**
+ * An open SPARQL SELECT execution whose solutions are pulled from TDB page
+ * by page. Must be closed, in the thread that opened it, to release the
+ * query execution, its read transaction and its kill watch.
+ */
+public class SparqlCursor implements AutoCloseable {
+
+    private final TDBStore store;
+    private final QueryExecution qe;
+    private final Dataset beganRead;
+    private final ResultSet result;
+    private final Future<?> watch;
+    private final long timeout;
+    private long position = 0;
+    private boolean closed = false;
+
+    SparqlCursor(TDBStore store, QueryExecution qe, Dataset beganRead, Future<?> watch, long timeout) {
+        this.store = store;
+        this.qe = qe;
+        this.beganRead = beganRead;
+        this.watch = watch;
+        this.timeout = timeout;
+        this.result = qe.execSelect();
+    }
+
+    /**
+     * Read the next solutions.
+     * @param context The XQuery context
+     * @param count Maximum number of solutions to read
+     * @return One sparql:result element per solution, empty when exhausted
+     * @throws org.exist.xquery.XPathException Query error
+     */
+    public Sequence next(XQueryContext context, long count) throws XPathException {
+        try {
+            if (!hasNext()) {
+                return EmptySequence.EMPTY_SEQUENCE;
+            }
+            Sequence solutions = TDBIndexWorker.solutions(context, result, count);
+            position += solutions.getItemCount();
+            return solutions;
+        } catch (QueryCancelledException ex) {
+            throw TDBIndexWorker.cancelled(context, timeout);
+        } catch (QueryException ex) {
+            throw new XPathException("Sparql query execution: " + ex);
+        }
+    }
+
+    public boolean hasNext() {
+        return !closed && result.hasNext();
+    }
+
+    /**
+     * @return Number of solutions read so far
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            watch.cancel(false);
+            try {
+                qe.close();
+            } finally {
+                store.endRead(beganRead);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of parsed SPARQL queries, keyed by base URI and query string,
+ * evicting the least recently used query when full.
+ * Cached queries are shared between threads and must not be modified, use
+ * {@link Query#cloneQuery()} to derive a modified query.
+ */
+public class SparqlQueryCache {
+
+    private final int maxSize;
+    private final Map<String, Query> queries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize Maximum number of cached queries, 0 disables caching
+     */
+    public SparqlQueryCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.queries = new LinkedHashMap<String, Query>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+                return size() > SparqlQueryCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the parsed query for queryString, parsing it on a cache miss.
+     * @param queryString SPARQL query string
+     * @param baseURI Base URI of the query
+     * @return Parsed query, shared
+     * @throws com.hp.hpl.jena.query.QueryParseException Syntax error, not cached
+     */
+    public Query get(String queryString, String baseURI) {
+        if (maxSize <= 0) {
+            misses.incrementAndGet();
+            return QueryFactory.create(queryString, baseURI);
+        }
+
+        String key = baseURI + ' ' + queryString;
+        Query query;
+        synchronized (queries) {
+            query = queries.get(key);
+        }
+        if (query != null) {
+            hits.incrementAndGet();
+            return query;
+        }
+
+        // parse outside the lock, a concurrent miss on the same key just parses twice
+        misses.incrementAndGet();
+        query = QueryFactory.create(queryString, baseURI);
+        // fix the result variables now, as the shared query must not be modified later
+        query.setResultVars();
+        synchronized (queries) {
+            queries.put(key, query);
+        }
+        return query;
+    }
+
+    public void clear() {
+        synchronized (queries) {
+            queries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (queries) {
+            return queries.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.exist.indexing.rdf;
+
+/**
+ * Options of a single SPARQL query call. Limits given here are capped by
+ * the global limits of the index configuration.
+ */
+public class SparqlQueryOptions {
+
+    /**
+     * Result formats. Results in formats other than XML are built
+     * straight from the query execution, without a results document.
+     */
+    public enum Format {
+        /** SPARQL Query Results XML, or RDF/XML for CONSTRUCT and DESCRIBE */
+        XML,
+        /** SPARQL Query Results JSON */
+        JSON,
+        /** SPARQL Query Results CSV */
+        CSV,
+        /** SPARQL Query Results TSV */
+        TSV,
+        /** one XQuery map per solution, see {@link JenaResultSet2Maps} */
+        MAP;
+
+        /**
+         * @param name Format name, in any case
+         * @return The format, or null if there is none of that name
+         */
+        public static Format forName(String name) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    private long timeout = 0;
+    private long maxResults = 0;
+    private Format format = Format.XML;
+
+    /**
+     * @return Time in milliseconds after which the query is cancelled, 0 for the global timeout
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return Number of solutions or triples beyond which the query fails, 0 for the global maximum
+     */
+    public long getMaxResults() {
+        return maxResults;
+    }
+
+    public void setMaxResults(long maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    /**
+     * @return Format of the result
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    /*
+     * Effective limit of a call, 0 for none
+     */
+    static long limit(long callLimit, long globalLimit) {
+        if (globalLimit > 0 && (callLimit <= 0 || callLimit > globalLimit)) {
+            return globalLimit;
+        }
+        return Math.max(callLimit, 0);
+    }
+
+}
@@ -0,0 +1,309 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.*;
+import com.hp.hpl.jena.sparql.core.Quad;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Cache of SPARQL query results, kept as recorded SAX events and bounded by
+ * their approximate memory size, evicting the least recently used result.
+ * <p>
+ * Validity is tracked by generations: every change to a graph of the dataset
+ * increments the generation, and a result is valid as long as no change
+ * happened after the generation it was computed at. With graph scoping, a
+ * query only addressing constant named graphs (GRAPH &lt;uri&gt; {...})
+ * only depends on changes to those graphs. Per graph generations are kept in
+ * a fixed number of hashed slots, a collision only costs an early
+ * invalidation. DESCRIBE queries always depend on the whole dataset.
+ */
+public class SparqlResultCache {
+
+    private static final int GRAPH_SLOTS = 4096;
+
+    private final long maxSize;
+    private final boolean graphScoped;
+    private final Map<String, Entry> results;
+    private long size = 0;
+    /* generation of the last clear, results computed before it are invalid */
+    private long cleared = 0;
+
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLongArray graphGenerations = new AtomicLongArray(GRAPH_SLOTS);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class Entry {
+        final SaxEventBuffer events;
+        final long generation;
+        /** graphs the result depends on, null for the whole dataset */
+        final String[] graphs;
+
+        Entry(SaxEventBuffer events, long generation, String[] graphs) {
+            this.events = events;
+            this.generation = generation;
+            this.graphs = graphs;
+        }
+    }
+
+    /**
+     * @param maxSize Approximate maximum memory size of cached results in bytes, 0 disables caching
+     * @param graphScoped Invalidate results of queries addressing constant named graphs by changes to those graphs only
+     */
+    public SparqlResultCache(long maxSize, boolean graphScoped) {
+        this.maxSize = maxSize;
+        this.graphScoped = graphScoped;
+        this.results = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * @return Maximum size of a single cached result, larger results are not cached
+     */
+    public long getMaxEntrySize() {
+        return maxSize / 4;
+    }
+
+    /**
+     * @return Current generation, to be read before executing a query whose result will be cached
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Invalidate results depending on a graph. Must be called after the
+     * change to the graph is visible to queries.
+     * @param graphURI Changed graph
+     */
+    public void invalidate(String graphURI) {
+        long gen = generation.incrementAndGet();
+        graphGenerations.accumulateAndGet(slot(graphURI), gen, Math::max);
+    }
+
+    /**
+     * Key of the result of a query, normalized by the query serialization.
+     * @param q Parsed query
+     * @param initialBinding Initial values of query variables, or null
+     * @return Cache key
+     */
+    public static String key(Query q, QuerySolution initialBinding) {
+        StringBuilder key = new StringBuilder(q.serialize());
+        if (initialBinding != null) {
+            List<String> varNames = new ArrayList<>();
+            for (Iterator<String> it = initialBinding.varNames(); it.hasNext();) {
+                varNames.add(it.next());
+            }
+            Collections.sort(varNames);
+            for (String varName : varNames) {
+                key.append('\n').append(varName).append('=').append(initialBinding.get(varName));
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Replay a cached result, if there is a valid one.
+     * @param key Cache key
+     * @param handler Handler receiving the result
+     * @return True if a cached result was replayed
+     * @throws org.xml.sax.SAXException Error from handler
+     */
+    public boolean replay(String key, ContentHandler handler) throws SAXException {
+        Entry entry;
+        synchronized (results) {
+            entry = results.get(key);
+            if (entry != null && !isValid(entry)) {
+                results.remove(key);
+                size -= entry.events.getSize();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        entry.events.replay(handler);
+        return true;
+    }
+
+    /**
+     * Cache a query result.
+     * @param key Cache key
+     * @param q Parsed query
+     * @param events Recorded result
+     * @param generation Generation read before the query was executed
+     */
+    public void put(String key, Query q, SaxEventBuffer events, long generation) {
+        if (events.isOverflow()) {
+            return;
+        }
+        Entry entry = new Entry(events, generation, graphScoped ? namedGraphs(q) : null);
+        synchronized (results) {
+            if (!isValid(entry)) {
+                return;
+            }
+            Entry previous = results.put(key, entry);
+            if (previous != null) {
+                size -= previous.events.getSize();
+            }
+            size += events.getSize();
+            Iterator<Entry> eldest = results.values().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                size -= eldest.next().events.getSize();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop all cached results, also invalidating the results of queries
+     * executing now, which are not cached when they complete.
+     */
+    public void clear() {
+        synchronized (results) {
+            cleared = generation.incrementAndGet();
+            results.clear();
+            size = 0;
+        }
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return Approximate memory size of cached results in bytes
+     */
+    public long getSize() {
+        synchronized (results) {
+            return size;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /*
+     * Called holding the lock of results
+     */
+    private boolean isValid(Entry entry) {
+        if (entry.generation < cleared) {
+            return false;
+        }
+        if (entry.graphs == null) {
+            return generation.get() <= entry.generation;
+        }
+        for (String graph : entry.graphs) {
+            if (graphGenerations.get(slot(graph)) > entry.generation) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int slot(String graphURI) {
+        return (graphURI.hashCode() & 0x7fffffff) % GRAPH_SLOTS;
+    }
+
+    /*
+     * The named graphs a query reads from, or null if it reads from the
+     * default graph, from a variable graph or from a dataset of its own.
+     */
+    static String[] namedGraphs(Query q) {
+        if (q.isDescribeType() || !q.getGraphURIs().isEmpty() || !q.getNamedGraphURIs().isEmpty()) {
+            return null;
+        }
+        final Set<String> graphs = new HashSet<>();
+        final boolean[] wholeDataset = {false};
+        Op op = Algebra.toQuadForm(Algebra.compile(q));
+        OpWalker.walk(op, new OpVisitorBase() {
+            private void graph(Node node) {
+                if (node.isURI() && !Quad.isDefaultGraph(node) && !Quad.isUnionGraph(node)) {
+                    graphs.add(node.getURI());
+                } else {
+                    wholeDataset[0] = true;
+                }
+            }
+
+            @Override
+            public void visit(OpQuadPattern quadPattern) {
+                graph(quadPattern.getGraphNode());
+            }
+
+            @Override
+            public void visit(OpQuad opQuad) {
+                graph(opQuad.getQuad().getGraph());
+            }
+
+            @Override
+            public void visit(OpGraph opGraph) {
+                graph(opGraph.getNode());
+            }
+
+            @Override
+            public void visit(OpBGP opBGP) {
+                wholeDataset[0] = true;
+            }
+
+            @Override
+            public void visit(OpTriple opTriple) {
+                wholeDataset[0] = true;
+            }
+
+            @Override
+            public void visit(OpPath opPath) {
+                wholeDataset[0] = true;
+            }
+
+            @Override
+            public void visit(OpDatasetNames dsNames) {
+                wholeDataset[0] = true;
+            }
+
+            @Override
+            public void visit(OpService opService) {
+                wholeDataset[0] = true;
+            }
+
+            @Override
+            public void visit(OpPropFunc opPropFunc) {
+                wholeDataset[0] = true;
+            }
+
+            @Override
+            public void visit(OpProcedure opProc) {
+                wholeDataset[0] = true;
+            }
+        });
+        return wholeDataset[0] ? null : graphs.toArray(new String[graphs.size()]);
+    }
+
+}
@@ -0,0 +1,197 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.sse.Item;
+import com.hp.hpl.jena.sparql.sse.ItemList;
+import com.hp.hpl.jena.sparql.sse.SSE;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
+import com.hp.hpl.jena.tdb.sys.Names;
+import com.hp.hpl.jena.vocabulary.RDF;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.OffsetDateTime;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Cardinality statistics of a store for the TDB query optimizer: the
+ * number of triples of each predicate and of each rdf:type class. They are
+ * kept up to date as the write batch applies changes, and written in the
+ * TDB statistics format to the stats.opt file of the TDB location, which
+ * TDB reads when the store connection is made. With it, TDB orders the
+ * patterns of a BGP by their estimated number of matches instead of by a
+ * fixed heuristic.
+ * <p>
+ * Counts kept up to date are estimates: triples removed from the graph of
+ * a single document are counted as given, whether or not they were
+ * stored, while added triples are only counted if not stored yet. {@link #scan(DatasetGraph)} recounts a store exactly. Counts
+ * are only written once they cover the whole store, that is when they
+ * continue from a previous file, from an empty store or from a scan.
+ */
+class StoreStatistics {
+
+    /** name of the statistics file in a TDB location */
+    static final String FILE_NAME = Names.optStats;
+
+    private static final Node TYPE = RDF.type.asNode();
+
+    private final Map<Node, Long> predicates = new HashMap<>();
+    private final Map<Node, Long> classes = new HashMap<>();
+    private long count = 0;
+    /* counts cover the whole store */
+    private boolean complete = false;
+    /* counts changed since last written */
+    private boolean changed = false;
+
+    synchronized void add(Triple triple) {
+        count(triple, 1);
+    }
+
+    synchronized void remove(Triple triple) {
+        count(triple, -1);
+    }
+
+    private void count(Triple triple, long delta) {
+        count = Math.max(count + delta, 0);
+        increment(predicates, triple.getPredicate(), delta);
+        if (TYPE.equals(triple.getPredicate()) && triple.getObject().isURI()) {
+            increment(classes, triple.getObject(), delta);
+        }
+        changed = true;
+    }
+
+    private static void increment(Map<Node, Long> counts, Node node, long delta) {
+        Long current = counts.get(node);
+        long value = (current == null ? 0 : current) + delta;
+        if (value > 0) {
+            counts.put(node, value);
+        } else {
+            counts.remove(node);
+        }
+    }
+
+    /**
+     * Count all triples of a dataset, replacing the current counts.
+     * @param dsg Dataset, in a read transaction
+     */
+    synchronized void scan(DatasetGraph dsg) {
+        clear();
+        for (Iterator<Quad> quads = dsg.find(Node.ANY, Node.ANY, Node.ANY, Node.ANY); quads.hasNext();) {
+            count(quads.next().asTriple(), 1);
+        }
+        complete = true;
+        changed = true;
+    }
+
+    /**
+     * Start counting from an empty store.
+     */
+    synchronized void empty() {
+        clear();
+        complete = true;
+        changed = true;
+    }
+
+    private void clear() {
+        predicates.clear();
+        classes.clear();
+        count = 0;
+    }
+
+    /**
+     * @return Number of triples
+     */
+    synchronized long getTriples() {
+        return count;
+    }
+
+    /**
+     * Continue from the counts of a statistics file written before, if
+     * there is one.
+     * @param file Statistics file
+     * @return True if the file was read
+     */
+    synchronized boolean read(Path file) {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        clear();
+        try {
+            ItemList stats = SSE.readFile(file.toString()).getList();
+            for (int i = 1; i < stats.size(); i++) {
+                ItemList entry = stats.get(i).getList();
+                Item pattern = entry.get(0);
+                if (pattern.isSymbol("meta")) {
+                    for (int j = 1; j < entry.size(); j++) {
+                        if (entry.get(j).isList() && entry.get(j).getList().get(0).isSymbol("count")) {
+                            count = number(entry.get(j).getList().get(1));
+                        }
+                    }
+                } else if (pattern.isNode()) {
+                    predicates.put(pattern.getNode(), number(entry.get(1)));
+                } else if (pattern.isList() && pattern.getList().size() == 3) {
+                    classes.put(pattern.getList().get(2).getNode(), number(entry.get(1)));
+                }
+            }
+        } catch (RuntimeException e) {
+            clear();
+            return false;
+        }
+        complete = true;
+        changed = false;
+        return true;
+    }
+
+    private static long number(Item item) {
+        return ((Number) item.getNode().getLiteralValue()).longValue();
+    }
+
+    /**
+     * Write the counts if they changed since last written and cover the
+     * whole store, replacing the file atomically. The file of an empty
+     * store is deleted, leaving TDB to its fixed heuristic.
+     * @param file Statistics file
+     * @return True if written
+     * @throws java.io.IOException Write failed
+     */
+    synchronized boolean write(Path file) throws IOException {
+        if (!complete || !changed) {
+            return false;
+        }
+        if (count == 0) {
+            Files.deleteIfExists(file);
+            changed = false;
+            return true;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            out.write("(stats\n  (meta\n    (timestamp ");
+            out.write(FmtUtils.stringForNode(NodeFactory.createLiteral(OffsetDateTime.now().toString(),
+                    XSDDatatype.XSDdateTime)));
+            out.write(")\n    (count " + count + "))\n");
+            // class patterns come first, so they match before the general rdf:type rule
+            for (Map.Entry<Node, Long> entry : classes.entrySet()) {
+                out.write("  ((VAR " + FmtUtils.stringForNode(TYPE) + " " + FmtUtils.stringForNode(entry.getKey())
+                        + ") " + entry.getValue() + ")\n");
+            }
+            for (Map.Entry<Node, Long> entry : predicates.entrySet()) {
+                out.write("  (" + FmtUtils.stringForNode(entry.getKey()) + " " + entry.getValue() + ")\n");
+            }
+            out.write(")\n");
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        changed = false;
+        return true;
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.DatasetGraphCollection;
+import com.hp.hpl.jena.sparql.core.Quad;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Read-only union of several stores, for queries across them. As for a
+ * single store, the default graph is the union of all named graphs, and a
+ * named graph is the union of the graphs of that name in the stores.
+ * <p>
+ * Queries over the union are evaluated by the general ARQ engine rather
+ * than the TDB one, and every store must be in a read transaction of the
+ * querying thread. GRAPH queries with a variable graph name list the graph
+ * names of all stores.
+ */
+class StoreUnion extends DatasetGraphCollection {
+
+    private final List<DatasetGraph> members = new ArrayList<>();
+    private final MultiUnion defaultGraph = new MultiUnion();
+
+    /**
+     * @param stores Stores, each in a read transaction of the current thread
+     */
+    StoreUnion(List<TDBStore> stores) {
+        for (TDBStore store : stores) {
+            DatasetGraph dsg = store.getDataset().asDatasetGraph();
+            members.add(dsg);
+            defaultGraph.addGraph(dsg.getGraph(Quad.unionGraph));
+        }
+    }
+
+    @Override
+    public Graph getDefaultGraph() {
+        return defaultGraph;
+    }
+
+    @Override
+    public Graph getGraph(Node graphNode) {
+        if (Quad.isUnionGraph(graphNode) || Quad.isDefaultGraph(graphNode)) {
+            return defaultGraph;
+        }
+        MultiUnion union = new MultiUnion();
+        for (DatasetGraph dsg : members) {
+            if (dsg.containsGraph(graphNode)) {
+                union.addGraph(dsg.getGraph(graphNode));
+            }
+        }
+        return union;
+    }
+
+    @Override
+    public boolean containsGraph(Node graphNode) {
+        for (DatasetGraph dsg : members) {
+            if (dsg.containsGraph(graphNode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<Node> listGraphNodes() {
+        Set<Node> graphNodes = new LinkedHashSet<>();
+        for (DatasetGraph dsg : members) {
+            for (Iterator<Node> it = dsg.listGraphNodes(); it.hasNext();) {
+                graphNodes.add(it.next());
+            }
+        }
+        return graphNodes.iterator();
+    }
+
+    @Override
+    public void addGraph(Node graphName, Graph graph) {
+        throw new UnsupportedOperationException("Union of RDF stores is read-only");
+    }
+
+    @Override
+    public void removeGraph(Node graphName) {
+        throw new UnsupportedOperationException("Union of RDF stores is read-only");
+    }
+
+    public void setDefaultGraph(Graph g) {
+        throw new UnsupportedOperationException("Union of RDF stores is read-only");
+    }
+
+}
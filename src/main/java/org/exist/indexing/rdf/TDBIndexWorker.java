@@ -1,20 +1,33 @@
 package org.exist.indexing.rdf;
 
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.query.*;
-import com.hp.hpl.jena.rdf.model.Model;
-import com.hp.hpl.jena.rdfxml.xmlinput.SAX2Model;
-import com.hp.hpl.jena.sparql.graph.GraphFactory;
 import com.hp.hpl.jena.sparql.resultset.ResultSetApply;
 import com.hp.hpl.jena.sparql.resultset.XMLResults;
+import com.hp.hpl.jena.vocabulary.RDF;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import org.apache.jena.riot.RiotException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.exist.Namespaces;
 import org.exist.collections.Collection;
+import org.exist.dom.QName;
 import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.NodeImpl;
 import org.exist.dom.persistent.*;
 import org.exist.indexing.AbstractStreamListener;
 import org.exist.indexing.IndexController;
@@ -22,25 +35,34 @@ import org.exist.indexing.IndexWorker;
 import org.exist.indexing.MatchListener;
 import org.exist.indexing.StreamListener;
 import org.exist.indexing.StreamListener.ReindexMode;
+import org.exist.numbering.NodeId;
 import org.exist.security.PermissionDeniedException;
 import org.exist.storage.DBBroker;
 import org.exist.storage.IndexSpec;
 import org.exist.storage.NodePath;
+import org.exist.storage.btree.DBException;
 import org.exist.storage.lock.Lock.LockMode;
 import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
 import org.exist.util.DatabaseConfigurationException;
 import org.exist.util.LockException;
 import org.exist.util.Occurrences;
+import org.exist.util.XMLString;
+import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.QueryRewriter;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
-import org.exist.xquery.modules.ModuleUtils;
+import org.exist.xquery.XQueryWatchDog;
+import org.exist.xquery.value.BooleanValue;
 import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.ValueSequence;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.helpers.AttributesImpl;
@@ -56,13 +78,19 @@ public class TDBIndexWorker implements IndexWorker {
     private final DBBroker broker;
     private final TDBRDFIndex index;
     private DocumentImpl currentDoc;
-    /** Model for storing pending RDF triples, for store or remove **/
-    private final Model cacheModel = GraphFactory.makeDefaultModel();
+    /** Buffer of pending RDF triples, for store or remove **/
+    private final TripleBuffer triples = new TripleBuffer();
 
     private RDFIndexConfig config;
     private ReindexMode mode;
     private final TDBStreamListener listener = new TDBStreamListener();
+    /** parser for removing documents from graphs shared with other documents, created when needed */
+    private SerializedDocumentParser documentParser;
     private IndexController controller;
+    /** eXist transaction of the nodes streamed to the listener, if known */
+    private Txn currentTxn;
+    /** changes waiting for the commit of their eXist transaction */
+    private TxnChanges txnChanges;
     private static final String CONFIG_ELEMENT_NAME = "rdf";
 
     TDBIndexWorker(TDBRDFIndex index, DBBroker broker) {
@@ -141,15 +169,58 @@ public class TDBIndexWorker implements IndexWorker {
 
     @Override
     public <T extends IStoredNode> IStoredNode getReindexRoot(IStoredNode<T> node, NodePath path, boolean insert, boolean includeSelf) {
-        // until TDBStreamReader$reset can handle base-uri properly when reindexing at non-root level, we reindex the whole document.
-        return (IStoredNode) node.getOwnerDocument().getFirstChild();
+        DocumentImpl doc = node.getOwnerDocument();
+        RDFIndexConfig cfg = getIndexConfig(doc.getCollection());
+        if (cfg == null) {
+            return null;
+        }
+        IStoredNode root = (IStoredNode) doc.getDocumentElement();
+        boolean isElement = node.getNodeType() == Node.ELEMENT_NODE;
+        NodeId nodeId = isElement ? node.getNodeId() : node.getNodeId().getParentId();
+        if (root == null || nodeId.getTreeLevel() < 1) {
+            return root;
+        }
+
+        // level of the root of the RDF/XML island containing the node
+        int islandLevel = 0;
+        boolean rdfIsland;
+        if (!cfg.hasIncludes()) {
+            islandLevel = 1;
+            rdfIsland = isRDFRoot(root.getNamespaceURI(), root.getLocalName());
+        } else if (path == null) {
+            return root;
+        } else {
+            NodePath p = new NodePath();
+            int levels = Math.min(path.length(), nodeId.getTreeLevel());
+            for (int i = 0; i < levels && islandLevel == 0; i++) {
+                p.addComponent(path.getComponent(i));
+                if (cfg.isIncluded(p)) {
+                    islandLevel = i + 1;
+                }
+            }
+            if (islandLevel == 0) {
+                // outside islands, only an element can contain islands
+                return isElement ? node : null;
+            }
+            QName islandRoot = path.getComponent(islandLevel - 1);
+            rdfIsland = isRDFRoot(islandRoot.getNamespaceURI(), islandRoot.getLocalName());
+        }
 
-        // return topmost parent element under root (tree level 2)
-//        NodeId nodeId = node.getNodeId();
-//        while (nodeId.getTreeLevel() > 2) {
-//            nodeId = nodeId.getParentId();
-//        }
-//        return broker.objectWith(node.getOwnerDocument(), nodeId);
+        // under an rdf:RDF island root, each child element is parsed on its own, so
+        // only the child containing the node needs to be reindexed.
+        // A triple also stated elsewhere in the document is kept, see removeNodes.
+        int level = rdfIsland && nodeId.getTreeLevel() > islandLevel ? islandLevel + 1 : islandLevel;
+        if (level == 1) {
+            return root;
+        }
+        while (nodeId.getTreeLevel() > level) {
+            nodeId = nodeId.getParentId();
+        }
+        return broker.objectWith(doc, nodeId);
+    }
+
+    private static boolean isRDFRoot(String namespaceURI, String localName) {
+        return RDF.getURI().equals(namespaceURI) && "RDF".equals(localName);
     }
 
     @Override
@@ -191,24 +262,34 @@ public class TDBIndexWorker implements IndexWorker {
         }
         // reset mode (as per method description: prepare for being reused for a different job.)
         mode = ReindexMode.UNKNOWN;
-        // clear model cache
-        cacheModel.removeAll();
+        currentTxn = null;
+        // clear triple buffer
+        triples.clear();
     }
 
     @Override
     public void removeCollection(Collection collection, DBBroker broker, boolean reindex) throws PermissionDeniedException {
         RDFIndexConfig cfg = getIndexConfig(collection);
-        if (cfg != null) {
+        List<String> graphURIs = cfg != null ? cfg.getCollectionGraphURIs(collection.getURI().toString()) : null;
+        if (cfg != null && !graphURIs.isEmpty()) {
+            TDBStore store = index.getStore(cfg.getStore());
+            DatasetDelta changes = beginChanges(store);
+            for (String graphURI : graphURIs) {
+                changes.dropSourced(graphURI);
+            }
+            endChanges(store, changes, cfg);
+        } else if (cfg != null) {
 	    try {
 		Iterator<DocumentImpl> it = collection.iterator(broker);
 		while (it.hasNext()) {
 		    DocumentImpl doc = it.next();
-		    removeDocument(doc);
+		    removeDocument(doc, cfg);
 		}
 	    } catch (LockException le) {
 		LOG.error(le);
 	    }
         }
+        currentTxn = null;
     }
 
     @Override
@@ -216,19 +297,6 @@ public class TDBIndexWorker implements IndexWorker {
         return true;
     }
 
-    private Model getOrCreateModel(DocumentImpl doc) {
-        return index.getDataset().getNamedModel(doc.getDocumentURI());
-    }
-
-    private Model getModelOrNull(DocumentImpl doc) {
-        final String documentURI = doc.getDocumentURI();
-
-        if (index.getDataset().containsNamedModel(documentURI)) {
-            return index.getDataset().getNamedModel(documentURI);
-        } else
-            return null;
-    }
-
     @Override
     public Occurrences[] scanIndex(XQueryContext context, DocumentSet docs, NodeSet contextSet, Map<?, ?> hints) {
         return new Occurrences[0];
@@ -241,41 +309,218 @@ public class TDBIndexWorker implements IndexWorker {
 
     /* Does the index have an entry for this document? */
     public boolean isDocumentIndexed(Document doc) {
-        String documentURI = doc.getDocumentURI();
-        return index.getDataset().containsNamedModel(documentURI);
+        RDFIndexConfig cfg = getIndexConfig(((DocumentImpl) doc).getCollection());
+        if (cfg == null) {
+            return false;
+        }
+        TDBStore store = index.getStore(cfg.getStore());
+        String graphURI = cfg.getGraphURI((DocumentImpl) doc);
+        int source = cfg.getSource((DocumentImpl) doc);
+        try {
+            // changes of the document not yet written, rather than the whole queue
+            Boolean pending = index.isIndexedPending(store, graphURI, source);
+            if (pending != null) {
+                return pending;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOG.warn("Checking RDF index of " + ((DocumentImpl) doc).getURI() + " before its changes are written: " + e.getMessage());
+        }
+        if (source != DatasetDelta.NO_SOURCE) {
+            // graph shared with other documents
+            return store.getSources().contains(graphURI, source);
+        }
+        Dataset began = store.beginRead();
+        try {
+            return store.getDataset().containsNamedModel(graphURI);
+        } finally {
+            store.endRead(began);
+        }
     }
 
     private void removeDocument() {
-        removeDocument(currentDoc);
+        removeDocument(currentDoc, config);
     }
 
     private void removeNodes() {
-        if (cacheModel.isEmpty())
+        if (triples.isEmpty())
             return;
-        Model model = getModelOrNull(currentDoc);
-        if (model == null) {
-            LOG.warn("removeNodes with null model");
+        List<Triple> removed = triples;
+        NodeId root = listener.getRoot();
+        if (root != null && root.getTreeLevel() > 1) {
+            removed = notStatedElsewhere(root);
+        }
+        if (removed.isEmpty())
             return;
+        TDBStore store = index.getStore(config.getStore());
+        DatasetDelta changes = beginChanges(store);
+        changes.remove(config.getGraphURI(currentDoc), config.getSource(currentDoc), removed);
+        endChanges(store, changes, config);
+    }
+
+    /*
+     * The triples of a removed subtree that the rest of the document does not
+     * state. The store does not know which part of a document stated a triple,
+     * so one also stated by a sibling description or another island must stay.
+     * Triples of blank nodes generated for the subtree are stated nowhere else;
+     * for the others, the rest of the document is parsed.
+     */
+    private List<Triple> notStatedElsewhere(NodeId root) {
+        Set<Triple> shared = new HashSet<>();
+        for (Triple triple : triples) {
+            if (!listener.isLocal(triple)) {
+                shared.add(triple);
+            }
+        }
+        if (shared.isEmpty()) {
+            return triples;
+        }
+        try {
+            if (documentParser == null) {
+                documentParser = new SerializedDocumentParser(broker.getBrokerPool().getNodeFactory());
+            }
+            shared.retainAll(documentParser.parse(broker.newSerializer(), currentDoc, config, root));
+        } catch (SAXException ex) {
+            // keeping a stale triple is better than losing one
+            LOG.error("Failed to parse " + currentDoc.getURI() + " for the RDF index: " + ex.getMessage(), ex);
+            return Collections.emptyList();
+        }
+        if (shared.isEmpty()) {
+            return triples;
         }
-        model.remove(cacheModel);
+        List<Triple> removed = new ArrayList<>(triples.size());
+        for (Triple triple : triples) {
+            if (!shared.contains(triple)) {
+                removed.add(triple);
+            }
+        }
+        return removed;
     }
 
     private void storeNodes() {
-        if (cacheModel.isEmpty())
+        if (triples.isEmpty())
             return;
-        Model model = getOrCreateModel(currentDoc);
-        model.add(cacheModel);
+        TDBStore store = index.getStore(config.getStore());
+        DatasetDelta changes = beginChanges(store);
+        changes.add(config.getGraphURI(currentDoc), config.getSource(currentDoc), triples);
+        endChanges(store, changes, config);
+        index.getMetrics().documentsIndexed(1);
     }
 
-    private void removeDocument(Document doc) {
-        if (doc != null) {
-            String documentURI = doc.getDocumentURI();
-            Dataset dataset = index.getDataset();
-            if (dataset.containsNamedModel(documentURI))
-                dataset.removeNamedModel(documentURI);
+    private void removeDocument(DocumentImpl doc, RDFIndexConfig cfg) {
+        if (doc == null) {
+            return;
+        }
+        index.getMetrics().documentRemoved();
+        TDBStore store = index.getStore(cfg.getStore());
+        DatasetDelta changes = beginChanges(store);
+        if (cfg.getGraphNaming() == RDFIndexConfig.GraphNaming.DOCUMENT) {
+            changes.drop(doc.getDocumentURI());
+        } else {
+            // the graph has triples of other documents, remove the triples of this one
+            try {
+                if (documentParser == null) {
+                    documentParser = new SerializedDocumentParser(broker.getBrokerPool().getNodeFactory());
+                }
+                changes.remove(cfg.getGraphURI(doc), cfg.getSource(doc), documentParser.parse(broker.newSerializer(), doc, cfg));
+            } catch (SAXException ex) {
+                LOG.error("Failed to remove " + doc.getURI() + " from the RDF index: " + ex.getMessage(), ex);
+            }
+        }
+        endChanges(store, changes, cfg);
+    }
+
+    /*
+     * Changes to a store of the current eXist transaction, written to TDB
+     * when it commits. The transaction is the one of the nodes streamed to
+     * the listener, or else the one the broker is running, as when a
+     * document or collection is removed, which streams no nodes to the
+     * listener. Without a known transaction, changes are written right
+     * away, unless changes of a transaction of this broker to the store
+     * are pending: those must not be overtaken.
+     */
+    private DatasetDelta beginChanges(TDBStore store) {
+        if (currentTxn == null) {
+            Txn transaction = broker.getCurrentTransaction();
+            if (transaction != null && transaction.getState() == Txn.State.STARTED) {
+                currentTxn = transaction;
+            }
+        }
+        if (currentTxn == null) {
+            DatasetDelta pending = txnChanges != null ? txnChanges.changes.get(store) : null;
+            return pending != null ? pending : new DatasetDelta();
+        }
+        if (txnChanges == null || txnChanges.transaction != currentTxn) {
+            txnChanges = new TxnChanges(currentTxn);
+            currentTxn.registerListener(txnChanges);
+        }
+        DatasetDelta changes = txnChanges.changes.get(store);
+        if (changes == null) {
+            changes = new DatasetDelta();
+            txnChanges.changes.put(store, changes);
+        }
+        return changes;
+    }
+
+    private void endChanges(TDBStore store, DatasetDelta changes, RDFIndexConfig cfg) {
+        if (txnChanges != null && txnChanges.changes.get(store) == changes) {
+            txnChanges.configs.put(store, cfg);
+        } else {
+            index.write(store, changes, cfg);
+        }
+    }
+
+    /*
+     * Hands the changes made in an eXist transaction to the write batches
+     * of their stores when the transaction commits, and discards them when
+     * it aborts.
+     */
+    private class TxnChanges implements TxnListener {
+
+        private final Txn transaction;
+        private final Map<TDBStore, DatasetDelta> changes = new LinkedHashMap<>();
+        /** configuration of the last changed document, per store */
+        private final Map<TDBStore, RDFIndexConfig> configs = new HashMap<>();
+
+        private TxnChanges(Txn transaction) {
+            this.transaction = transaction;
+        }
+
+        @Override
+        public void commit() {
+            done();
+            for (Map.Entry<TDBStore, DatasetDelta> entry : changes.entrySet()) {
+                index.write(entry.getKey(), entry.getValue(), configs.get(entry.getKey()));
+            }
+        }
+
+        @Override
+        public void abort() {
+            done();
+        }
+
+        private void done() {
+            if (txnChanges == this) {
+                txnChanges = null;
+            }
         }
     }
 
+    /**
+     * @return Metrics of the index
+     */
+    public RDFIndexMetrics getMetrics() {
+        return index.getMetrics();
+    }
+
+    /**
+     * @return Names of the stores of the index
+     */
+    public Set<String> getStoreNames() {
+        return index.getStoreNames();
+    }
+
     /**
      * Query TDB with SPARQL
      * @param context The XQuery context
@@ -284,96 +529,652 @@ public class TDBIndexWorker implements IndexWorker {
      * @throws org.exist.xquery.XPathException Query error
      */
     public Sequence query(XQueryContext context, String queryString) throws XPathException {
-        Query q;
-        Sequence resultDoc = null;
+        return query(context, parseQuery(queryString), null);
+    }
+
+    /**
+     * Query one store, or the union of several stores, with SPARQL
+     * @param context The XQuery context
+     * @param queryString SPARQL query string
+     * @param storeNames Names of the stores to query, the default store if empty
+     * @param options Timeout, result limit and result format of the call
+     * @return Result document, or string for formats other than XML
+     * @throws org.exist.xquery.XPathException Query error, unknown store, timeout or result limit exceeded
+     */
+    public Sequence query(XQueryContext context, String queryString, List<String> storeNames,
+            SparqlQueryOptions options) throws XPathException {
+        Query q = parseQuery(queryString);
+        Set<TDBStore> stores = new LinkedHashSet<>();
+        for (String name : storeNames) {
+            TDBStore store = index.getExistingStore(name);
+            if (store == null) {
+                throw new XPathException("No RDF store named " + name);
+            }
+            stores.add(store);
+        }
+        if (stores.isEmpty()) {
+            stores.add(index.getDefaultStore());
+        }
+        return query(context, new ArrayList<>(stores), q, null, options);
+    }
+
+    /**
+     * Parse a SPARQL query once, for repeated execution by
+     * {@link #query(XQueryContext, Query, QuerySolution)}.
+     * @param queryString SPARQL query string
+     * @return Parsed query, shared and not to be modified
+     * @throws org.exist.xquery.XPathException Query syntax error
+     */
+    public Query prepare(String queryString) throws XPathException {
+        return parseQuery(queryString);
+    }
+
+    /**
+     * Query TDB with a parsed SPARQL query
+     * @param context The XQuery context
+     * @param q Parsed SPARQL query
+     * @param initialBinding Initial values of query variables, or null
+     * @return Result document
+     * @throws org.exist.xquery.XPathException Query error
+     */
+    public Sequence query(XQueryContext context, Query q, QuerySolution initialBinding) throws XPathException {
+        return query(context, Collections.singletonList(index.getDefaultStore()), q, initialBinding,
+                new SparqlQueryOptions());
+    }
+
+    private Sequence query(XQueryContext context, List<TDBStore> stores, Query q, QuerySolution initialBinding,
+            SparqlQueryOptions options) throws XPathException {
+        long timeout = SparqlQueryOptions.limit(options.getTimeout(), index.getQueryTimeout());
+        long maxResults = SparqlQueryOptions.limit(options.getMaxResults(), index.getMaxResults());
+        if (options.getFormat() != SparqlQueryOptions.Format.XML) {
+            return queryValue(context, stores, q, initialBinding, options.getFormat(), timeout, maxResults);
+        }
+
+        /*
+         * results of a union of stores are not cached, nor those of calls
+         * with a result limit of their own, which a cached result may exceed
+         */
+        SparqlResultCache resultCache = stores.size() == 1 && options.getMaxResults() <= 0
+                ? stores.get(0).getResultCache() : null;
+        String cacheKey = resultCache != null && resultCache.isEnabled() ? SparqlResultCache.key(q, initialBinding) : null;
+
+        context.pushDocumentContext();
         try {
-//            String baseURI = context.getBaseURI().getStringValue();
-            String baseURI = "";
-            q = QueryFactory.create(queryString, baseURI);
-        } catch (QueryParseException ex) {
+            DocumentBuilderReceiver builder = new DocumentBuilderReceiver(context.getDocumentBuilder(), true);
+            if (cacheKey != null && resultCache.replay(cacheKey, builder)) {
+                return (Sequence) builder.getDocument();
+            }
+
+            long generation = cacheKey != null ? resultCache.getGeneration() : 0;
+            SaxEventBuffer recorder = cacheKey != null ? new SaxEventBuffer(builder, resultCache.getMaxEntrySize()) : null;
+            Dataset[] began = beginRead(stores);
+            try {
+                try (QueryExecution qe = QueryExecutionFactory.create(q, dataset(stores), initialBinding)) {
+                    if (timeout > 0) {
+                        qe.setTimeout(timeout);
+                    }
+                    SlowQueryLog.Execution slow = index.getSlowQueryLog().begin(context, q, qe);
+                    Future<?> watch = index.watch(context, qe);
+                    try {
+                        writeResult(q, qe, slow, recorder != null ? recorder : builder, maxResults);
+                    } catch (QueryCancelledException ex) {
+                        aborted(slow, SlowQueryLog.Outcome.CANCELLED);
+                        throw ex;
+                    } finally {
+                        watch.cancel(false);
+                        aborted(slow, SlowQueryLog.Outcome.FAILED);
+                    }
+                }
+            } finally {
+                endRead(stores, began);
+            }
+            if (recorder != null) {
+                resultCache.put(cacheKey, q, recorder, generation);
+            }
+            return (Sequence) builder.getDocument();
+
+        } catch (QueryCancelledException ex) {
+            throw cancelled(context, timeout);
+        } catch (QueryException ex) {
             LOG.warn("QueryException: " + ex.getLocalizedMessage());
-            throw new XPathException(ex.getLine(), ex.getColumn(), "in SPARQL query: " + ex.getMessage());
+            throw new XPathException("Sparql query execution: " + ex);
+        } catch (SAXException ex) {
+            LOG.error(ex);
+            throw new XPathException("Sparql query result: " + ex.getMessage());
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+
+    /*
+     * Execute query and return its result in a format other than XML, as
+     * maps or as a string, without caching
+     */
+    private Sequence queryValue(XQueryContext context, List<TDBStore> stores, Query q, QuerySolution initialBinding,
+            SparqlQueryOptions.Format format, long timeout, long maxResults) throws XPathException {
+        Dataset[] began = beginRead(stores);
+        try (QueryExecution qe = QueryExecutionFactory.create(q, dataset(stores), initialBinding)) {
+            if (timeout > 0) {
+                qe.setTimeout(timeout);
+            }
+            SlowQueryLog.Execution slow = index.getSlowQueryLog().begin(context, q, qe);
+            Future<?> watch = index.watch(context, qe);
+            try {
+                if (format == SparqlQueryOptions.Format.MAP) {
+                    return maps(context, q, qe, slow, maxResults);
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                writeText(q, qe, slow, format, out, maxResults);
+                return new StringValue(new String(out.toByteArray(), StandardCharsets.UTF_8));
+            } catch (QueryCancelledException ex) {
+                aborted(slow, SlowQueryLog.Outcome.CANCELLED);
+                throw ex;
+            } finally {
+                watch.cancel(false);
+                aborted(slow, SlowQueryLog.Outcome.FAILED);
+            }
+        } catch (QueryCancelledException ex) {
+            throw cancelled(context, timeout);
+        } catch (QueryException ex) {
+            LOG.warn("QueryException: " + ex.getLocalizedMessage());
+            throw new XPathException("Sparql query execution: " + ex);
+        } finally {
+            endRead(stores, began);
         }
+    }
 
-        // all query types not implemented yet
-        if (!(q.isSelectType() || q.isAskType() || q.isConstructType())) {
-            throw new XPathException("SPARQL query type not supported: " + queryString);
+    /*
+     * Execute a SELECT or ASK query and return one map per solution, or
+     * the boolean, failing once it has more than maxResults solutions, unless 0
+     */
+    private Sequence maps(XQueryContext context, Query q, QueryExecution qe, SlowQueryLog.Execution slow,
+            long maxResults)
+            throws XPathException {
+        long start = System.nanoTime();
+        if (q.isSelectType()) {
+            ResultSet result = qe.execSelect();
+            long execNanos = System.nanoTime() - start;
+            ValueSequence solutions = new ValueSequence();
+            long size = new JenaResultSet2Maps(context).apply(result, solutions, maxResults);
+            if (maxResults > 0 && result.hasNext()) {
+                throw tooManyResults(slow, execNanos, size, maxResults);
+            }
+            executed(q, slow, start, execNanos, size);
+            return solutions;
+        } else if (q.isAskType()) {
+            BooleanValue result = BooleanValue.valueOf(qe.execAsk());
+            long execNanos = System.nanoTime() - start;
+            executed(q, slow, start, execNanos, 1);
+            return result;
         }
+        throw new XPathException("SPARQL CONSTRUCT and DESCRIBE results are only available as XML, not map");
+    }
 
-        try (QueryExecution qe = QueryExecutionFactory.create(q, index.getDataset())) {
+    /*
+     * Execute a SELECT or ASK query and write its result to out, failing
+     * once it has more than maxResults solutions, unless 0
+     */
+    private void writeText(Query q, QueryExecution qe, SlowQueryLog.Execution slow, SparqlQueryOptions.Format format,
+            OutputStream out, long maxResults) throws XPathException {
+        long start = System.nanoTime();
+        if (q.isSelectType()) {
+            LimitedResultSet result = new LimitedResultSet(qe.execSelect(), maxResults);
+            long execNanos = System.nanoTime() - start;
+            switch (format) {
+                case JSON:
+                    ResultSetFormatter.outputAsJSON(out, result);
+                    break;
+                case CSV:
+                    ResultSetFormatter.outputAsCSV(out, result);
+                    break;
+                default:
+                    ResultSetFormatter.outputAsTSV(out, result);
+            }
+            if (result.isExceeded()) {
+                throw tooManyResults(slow, execNanos, result.getRowNumber(), maxResults);
+            }
+            executed(q, slow, start, execNanos, result.getRowNumber());
+        } else if (q.isAskType()) {
+            boolean result = qe.execAsk();
+            long execNanos = System.nanoTime() - start;
+            switch (format) {
+                case JSON:
+                    ResultSetFormatter.outputAsJSON(out, result);
+                    break;
+                case CSV:
+                    ResultSetFormatter.outputAsCSV(out, result);
+                    break;
+                default:
+                    ResultSetFormatter.outputAsTSV(out, result);
+            }
+            executed(q, slow, start, execNanos, 1);
+        } else {
+            throw new XPathException("SPARQL CONSTRUCT and DESCRIBE results are only available as XML, not "
+                    + format.name().toLowerCase());
+        }
+    }
 
-            if (q.isSelectType()) {
-                ResultSet result = qe.execSelect();
-                /*
-                 * Build SELECT result 
-                 */
-                context.pushDocumentContext();
-                try {
-                    DocumentBuilderReceiver builder = new DocumentBuilderReceiver(context.getDocumentBuilder(), true);
-                    JenaResultSet2Sax jenaResultSet2Sax = new JenaResultSet2Sax(builder);
-                    ResultSetApply.apply(result, jenaResultSet2Sax);
-                    resultDoc = (Sequence) builder.getDocument();
-                } finally {
-                    context.popDocumentContext();
+    /*
+     * Begin read transactions of the current thread on stores
+     */
+    private static Dataset[] beginRead(List<TDBStore> stores) {
+        Dataset[] began = new Dataset[stores.size()];
+        for (int i = 0; i < began.length; i++) {
+            began[i] = stores.get(i).beginRead();
+        }
+        return began;
+    }
+
+    private static void endRead(List<TDBStore> stores, Dataset[] began) {
+        for (int i = 0; i < began.length; i++) {
+            stores.get(i).endRead(began[i]);
+        }
+    }
+
+    /*
+     * Dataset of one store, or the union of several, in read transactions
+     */
+    private static Dataset dataset(List<TDBStore> stores) {
+        return stores.size() == 1 ? stores.get(0).getDataset() : DatasetFactory.create(new StoreUnion(stores));
+    }
+
+    /*
+     * Execute query and write its result to handler, failing once it has
+     * more than maxResults solutions or triples, unless 0
+     */
+    private void writeResult(Query q, QueryExecution qe, SlowQueryLog.Execution slow, ContentHandler handler,
+            long maxResults)
+            throws SAXException, XPathException {
+        long start = System.nanoTime();
+        long execNanos;
+        long size;
+        if (q.isSelectType()) {
+            ResultSet result = qe.execSelect();
+            execNanos = System.nanoTime() - start;
+            /*
+             * Build SELECT result
+             */
+            JenaResultSet2Sax jenaResultSet2Sax = new JenaResultSet2Sax(handler);
+            if (maxResults > 0) {
+                size = jenaResultSet2Sax.apply(result, maxResults);
+                if (result.hasNext()) {
+                    throw tooManyResults(slow, execNanos, size, maxResults);
                 }
-            } else if (q.isAskType()) {
-                boolean result = qe.execAsk();
-                /*
-                 * Build ASK (boolean) result
-                 */
-                context.pushDocumentContext();
-                try {
-                    DocumentBuilderReceiver builder = new DocumentBuilderReceiver(context.getDocumentBuilder(), true);
-                    final Attributes attrs = new AttributesImpl();
-                    builder.startDocument();
-//                    builder.startPrefixMapping("", XMLResults.baseNamespace);
-                    builder.startElement(XMLResults.baseNamespace, XMLResults.dfRootTag, XMLResults.dfRootTag, attrs);
-                    builder.startElement(XMLResults.baseNamespace, XMLResults.dfHead, XMLResults.dfHead, attrs);
-                    builder.endElement(XMLResults.baseNamespace, XMLResults.dfHead, XMLResults.dfHead);
-                    builder.startElement(XMLResults.baseNamespace, XMLResults.dfBoolean, XMLResults.dfBoolean, attrs);
-                    builder.characters(Boolean.toString(result));
-                    builder.endElement(XMLResults.baseNamespace, XMLResults.dfBoolean, XMLResults.dfBoolean);
-                    builder.endElement(XMLResults.baseNamespace, XMLResults.dfRootTag, XMLResults.dfRootTag);
-                    builder.endDocument();
-
-                    resultDoc = (Sequence) builder.getDocument();
-
-                } catch (SAXException ex) {
-                    LOG.error(ex);
-                } finally {
-                    context.popDocumentContext();
+            } else {
+                ResultSetApply.apply(result, jenaResultSet2Sax);
+                size = result.getRowNumber();
+            }
+        } else if (q.isAskType()) {
+            boolean result = qe.execAsk();
+            execNanos = System.nanoTime() - start;
+            size = 1;
+            /*
+             * Build ASK (boolean) result
+             */
+            final Attributes attrs = new AttributesImpl();
+            final char[] value = Boolean.toString(result).toCharArray();
+            handler.startDocument();
+//            handler.startPrefixMapping("", XMLResults.baseNamespace);
+            handler.startElement(XMLResults.baseNamespace, XMLResults.dfRootTag, XMLResults.dfRootTag, attrs);
+            handler.startElement(XMLResults.baseNamespace, XMLResults.dfHead, XMLResults.dfHead, attrs);
+            handler.endElement(XMLResults.baseNamespace, XMLResults.dfHead, XMLResults.dfHead);
+            handler.startElement(XMLResults.baseNamespace, XMLResults.dfBoolean, XMLResults.dfBoolean, attrs);
+            handler.characters(value, 0, value.length);
+            handler.endElement(XMLResults.baseNamespace, XMLResults.dfBoolean, XMLResults.dfBoolean);
+            handler.endElement(XMLResults.baseNamespace, XMLResults.dfRootTag, XMLResults.dfRootTag);
+            handler.endDocument();
+        } else if (q.isConstructType() || q.isDescribeType()) {
+            Iterator<Triple> triples = q.isConstructType() ? qe.execConstructTriples() : qe.execDescribeTriples();
+            execNanos = System.nanoTime() - start;
+            /*
+             * Build CONSTRUCT/DESCRIBE (RDF/XML) result, triple by triple
+             */
+            JenaTriples2Sax jenaTriples2Sax = new JenaTriples2Sax(handler);
+            for (Map.Entry<String, String> prefix : q.getPrefixMapping().getNsPrefixMap().entrySet()) {
+                jenaTriples2Sax.prefix(prefix.getKey(), prefix.getValue());
+            }
+            size = 0;
+            try {
+                jenaTriples2Sax.start();
+                while (triples.hasNext()) {
+                    if (maxResults > 0 && size == maxResults) {
+                        throw tooManyResults(slow, execNanos, size, maxResults);
+                    }
+                    jenaTriples2Sax.triple(triples.next());
+                    size++;
                 }
-            } else if (q.isConstructType()) {
-                // this may not be a very nice solution?
-                Writer out = new StringWriter(256);
-                qe.execConstruct().write(out);
-                context.pushDocumentContext();
-                try {
-                    resultDoc = ModuleUtils.stringToXML(context, out.toString());
-                } catch (SAXException | IOException ex) {
-                    LOG.error(ex);
-                } finally {
-                    context.popDocumentContext();
+                jenaTriples2Sax.finish();
+            } catch (RiotException ex) {
+                if (ex.getCause() instanceof SAXException) {
+                    throw (SAXException) ex.getCause();
                 }
+                throw ex;
+            }
+        } else {
+            return;
+        }
+        executed(q, slow, start, execNanos, size);
+    }
+
+    /*
+     * Record the times and result size of a query execution started at
+     * start, and log it if slow
+     */
+    private void executed(Query q, SlowQueryLog.Execution slow, long start, long execNanos, long size) {
+        index.getMetrics().queryExecuted(RDFIndexMetrics.QueryType.of(q), execNanos,
+                System.nanoTime() - start - execNanos, size);
+        if (slow != null) {
+            slow.end(SlowQueryLog.Outcome.COMPLETED, execNanos, size);
+        }
+    }
+
+    /*
+     * Log an execution ended by an exception if slow, unless it was
+     * logged as completed or limited already
+     */
+    private static void aborted(SlowQueryLog.Execution slow, SlowQueryLog.Outcome outcome) {
+        if (slow != null) {
+            slow.abort(outcome);
+        }
+    }
+
+    /*
+     * Error for a result exceeding maxResults, logging the execution if slow
+     */
+    private static XPathException tooManyResults(SlowQueryLog.Execution slow, long execNanos, long size,
+            long maxResults) {
+        if (slow != null) {
+            slow.end(SlowQueryLog.Outcome.LIMITED, execNanos, size);
+        }
+        return new XPathException("SPARQL query result exceeds the limit of " + maxResults + " solutions or triples");
+    }
+
+    /*
+     * Error for a query execution aborted by its timeout or by a kill of the XQuery
+     */
+    static XPathException cancelled(XQueryContext context, long timeout) {
+        XQueryWatchDog watchDog = context.getWatchDog();
+        if (watchDog != null && watchDog.isTerminating()) {
+            return new XPathException("SPARQL query cancelled, the XQuery was killed");
+        }
+        if (timeout <= 0) {
+            return new XPathException("SPARQL query cancelled, the XQuery exceeded its timeout");
+        }
+        return new XPathException("SPARQL query timed out after " + timeout + " ms");
+    }
+
+    /**
+     * Query TDB with a SPARQL SELECT query, returning one page of solutions.
+     * The page is pushed down into the query as OFFSET/LIMIT, so only the
+     * solutions of the page are produced.
+     * @param context The XQuery context
+     * @param queryString SPARQL SELECT query string
+     * @param offset Number of solutions to skip
+     * @param limit Maximum number of solutions to return
+     * @return One sparql:result element per solution
+     * @throws org.exist.xquery.XPathException Query error
+     */
+    public Sequence queryPage(XQueryContext context, String queryString, long offset, long limit) throws XPathException {
+        Query q = parseQuery(queryString);
+        if (!q.isSelectType()) {
+            throw new XPathException("SPARQL query type not supported for paging: " + queryString);
+        }
+
+        // page within any OFFSET/LIMIT of the query itself
+        q = q.cloneQuery();
+        long queryOffset = q.hasOffset() ? q.getOffset() : 0;
+        if (q.hasLimit()) {
+            limit = Math.min(limit, Math.max(q.getLimit() - offset, 0));
+        }
+        q.setOffset(queryOffset + offset);
+        q.setLimit(limit);
+
+        TDBStore store = index.getDefaultStore();
+        long timeout = index.getQueryTimeout();
+        Dataset began = store.beginRead();
+        try (QueryExecution qe = QueryExecutionFactory.create(q, store.getDataset())) {
+            if (timeout > 0) {
+                qe.setTimeout(timeout);
             }
+            SlowQueryLog.Execution slow = index.getSlowQueryLog().begin(context, q, qe);
+            Future<?> watch = index.watch(context, qe);
+            try {
+                long start = System.nanoTime();
+                ResultSet result = qe.execSelect();
+                long execNanos = System.nanoTime() - start;
+                Sequence solutions = solutions(context, result, limit);
+                executed(q, slow, start, execNanos, solutions.getItemCount());
+                return solutions;
+            } catch (QueryCancelledException ex) {
+                aborted(slow, SlowQueryLog.Outcome.CANCELLED);
+                throw ex;
+            } finally {
+                watch.cancel(false);
+                aborted(slow, SlowQueryLog.Outcome.FAILED);
+            }
+        } catch (QueryCancelledException ex) {
+            throw cancelled(context, timeout);
+        } catch (QueryException ex) {
+            LOG.warn("QueryException: " + ex.getLocalizedMessage());
+            throw new XPathException("Sparql query execution: " + ex);
+        } finally {
+            store.endRead(began);
+        }
+    }
 
+    /**
+     * Open a cursor over the solutions of a SPARQL SELECT query. Solutions
+     * are read from TDB as the cursor is advanced, in a read transaction
+     * of the current thread held until the cursor is closed. The configured
+     * query timeout limits the time to the first solution, and a kill of
+     * the XQuery aborts the execution.
+     * @param context The XQuery context
+     * @param queryString SPARQL SELECT query string
+     * @return Cursor, to be closed by the caller
+     * @throws org.exist.xquery.XPathException Query error
+     */
+    public SparqlCursor openCursor(XQueryContext context, String queryString) throws XPathException {
+        Query q = parseQuery(queryString);
+        if (!q.isSelectType()) {
+            throw new XPathException("SPARQL query type not supported for cursors: " + queryString);
+        }
+
+        // the read transaction stays open until the cursor is closed
+        TDBStore store = index.getDefaultStore();
+        long timeout = index.getQueryTimeout();
+        Dataset began = store.beginRead();
+        QueryExecution qe = null;
+        Future<?> watch = null;
+        try {
+            qe = QueryExecutionFactory.create(q, store.getDataset());
+            if (timeout > 0) {
+                // the caller paces the cursor, so only the first solution is timed
+                qe.setTimeout(timeout, -1);
+            }
+            watch = index.watch(context, qe);
+            return new SparqlCursor(store, qe, began, watch, timeout);
         } catch (QueryException ex) {
+            if (watch != null) {
+                watch.cancel(false);
+            }
+            if (qe != null) {
+                qe.close();
+            }
+            store.endRead(began);
+            if (ex instanceof QueryCancelledException) {
+                throw cancelled(context, timeout);
+            }
             LOG.warn("QueryException: " + ex.getLocalizedMessage());
             throw new XPathException("Sparql query execution: " + ex);
         }
+    }
 
-        return resultDoc;
+    /**
+     * Rebuild the RDF index of a collection and its descendants, parsing
+     * documents on parallel threads. The triples of stores that are empty
+     * are written by the TDB bulk loader.
+     * @param collectionURI Collection to reindex
+     * @param threads Number of parser threads, or 0 for the configured number
+     * @return Number of documents reindexed
+     * @throws org.exist.xquery.XPathException Collection not found or not readable, or the write failed
+     */
+    public long reindex(XmldbURI collectionURI, int threads) throws XPathException {
+        return reindex(collectionURI, threads, false);
+    }
+
+    /**
+     * Rebuild the whole RDF index from the indexed documents of the
+     * database, replacing the content of their stores using the TDB bulk
+     * loader.
+     * @param threads Number of parser threads, or 0 for the configured number
+     * @return Number of documents reindexed
+     * @throws org.exist.xquery.XPathException Collections not readable, or the load failed
+     */
+    public long rebuild(int threads) throws XPathException {
+        return reindex(XmldbURI.ROOT_COLLECTION_URI, threads, true);
+    }
+
+    /**
+     * Wait until the RDF changes of the eXist transactions committed so
+     * far are written to TDB, so that queries see them, including those
+     * queued for the background writer and those held in write batches.
+     * @throws org.exist.xquery.XPathException Interrupted while waiting, writing
+     * fails or the current thread is in a read transaction, see {@link TDBRDFIndex#awaitWrites()}
+     */
+    public void awaitIndex() throws XPathException {
+        try {
+            index.awaitWrites();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException("Interrupted waiting for the RDF index to be written");
+        } catch (IOException e) {
+            throw new XPathException(e.getMessage());
+        }
+    }
+
+    /**
+     * Recount the optimizer statistics of stores and reconnect them, so
+     * that TDB orders query patterns by them, see {@link TDBStore#analyze()}.
+     * @param storeNames Names of the stores to analyze, all stores if empty
+     * @return Number of triples counted
+     * @throws org.exist.xquery.XPathException Unknown store, store in use or the write failed
+     */
+    public long analyze(List<String> storeNames) throws XPathException {
+        awaitIndex();
+        List<String> names = storeNames.isEmpty() ? new ArrayList<>(index.getStoreNames()) : storeNames;
+        List<TDBStore> stores = new ArrayList<>();
+        for (String name : names) {
+            TDBStore store = index.getExistingStore(name);
+            if (store == null) {
+                throw new XPathException("No RDF store named " + name);
+            }
+            stores.add(store);
+        }
+        long triples = 0;
+        try {
+            for (TDBStore store : stores) {
+                triples += store.analyze();
+            }
+        } catch (DBException ex) {
+            throw new XPathException("Analyze of RDF index: " + ex.getMessage());
+        }
+        return triples;
+    }
+
+    /**
+     * Close a store and delete its files, once the changes queued for it
+     * are written.
+     * @param name Name of the store
+     * @throws org.exist.xquery.XPathException Unknown or default store
+     */
+    public void dropStore(String name) throws XPathException {
+        if (TDBRDFIndex.DEFAULT_STORE.equals(name)) {
+            throw new XPathException("The default RDF store can not be dropped");
+        }
+        awaitIndex();
+        if (!index.dropStore(name)) {
+            throw new XPathException("No RDF store named " + name);
+        }
+    }
+
+    private long reindex(XmldbURI collectionURI, int threads, boolean replace) throws XPathException {
+        awaitIndex();
+        try {
+            Collection collection = broker.getCollection(collectionURI);
+            if (collection == null) {
+                throw new XPathException("Collection not found: " + collectionURI);
+            }
+            ParallelReindexer reindexer = new ParallelReindexer(index, threads > 0 ? threads : index.getReindexThreads(),
+                    replace);
+            long documents = reindexer.reindex(broker, collection);
+            index.getMetrics().documentsIndexed(documents);
+            return documents;
+        } catch (PermissionDeniedException | IOException | DBException ex) {
+            throw new XPathException("Reindex of " + collectionURI + ": " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new XPathException("Reindex of " + collectionURI + " interrupted");
+        }
+    }
+
+    /*
+     * Build at most max solutions from result, as sparql:result elements
+     */
+    static Sequence solutions(XQueryContext context, ResultSet result, long max) throws XPathException {
+        org.exist.dom.memtree.DocumentImpl doc;
+        context.pushDocumentContext();
+        try {
+            DocumentBuilderReceiver builder = new DocumentBuilderReceiver(context.getDocumentBuilder(), true);
+            JenaResultSet2Sax jenaResultSet2Sax = new JenaResultSet2Sax(builder);
+            jenaResultSet2Sax.apply(result, max);
+            doc = builder.getDocument();
+        } finally {
+            context.popDocumentContext();
+        }
+
+        ValueSequence solutions = new ValueSequence();
+        for (Node child = doc.getDocumentElement().getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (XMLResults.dfResults.equals(child.getLocalName())) {
+                for (Node solution = child.getFirstChild(); solution != null; solution = solution.getNextSibling()) {
+                    solutions.add((NodeImpl) solution);
+                }
+            }
+        }
+        return solutions;
+    }
+
+    private Query parseQuery(String queryString) throws XPathException {
+        try {
+//            String baseURI = context.getBaseURI().getStringValue();
+            String baseURI = "";
+            long start = System.nanoTime();
+            Query q = index.getQueryCache().get(queryString, baseURI);
+            index.getMetrics().queryPrepared(System.nanoTime() - start);
+            return q;
+        } catch (QueryParseException ex) {
+            LOG.warn("QueryException: " + ex.getLocalizedMessage());
+            throw new XPathException(ex.getLine(), ex.getColumn(), "in SPARQL query: " + ex.getMessage());
+        }
     }
 
     private class TDBStreamListener extends AbstractStreamListener {
 
         private ElementImpl deferredElement;
+        /** deferredElement is parsed, see DocumentTripleParser.isParsed */
+        private boolean deferredParsed;
         private final AttributesImpl deferredAttribs = new AttributesImpl();
-        private SAX2Model saxHandler;
+        private DocumentTripleParser parser;
+        /** no element was streamed since reset */
+        private boolean first;
+        /** node id of the first element streamed since reset */
+        private NodeId root;
+        private final QNameStrings qnames = new QNameStrings();
+        /** text of the current text node */
+        private char[] chars = new char[1024];
 
         private TDBStreamListener() {
             try {
-                saxHandler = SAX2Model.create("", cacheModel);
+                parser = new DocumentTripleParser(triples);
             } catch (SAXParseException ex) {
                 LOG.error(ex);
             }
@@ -383,29 +1184,13 @@ public class TDBIndexWorker implements IndexWorker {
          * Reset RDF sax handler with the new document
          */
         public void reset(Document doc) {
-//            String base = "resource:" + doc.getBaseURI() + "#";
-            String base = "";
-            String lang = "";
-
-            // todo: base URL and lang for the case where only a subtree is added/removed
-            // if at reindex we start from first level under RDF root, we'd want base uri and lang from root element.
-            // how can we know if doc has root node yet? getFirstChild prints error messages and stacktrace when root node not built yet 
-//            ElementImpl root = (ElementImpl) doc.getFirstChild();
-//            if (root != null) {
-//                base = root.getBaseURI();
-//                String langAttr = root.getAttributeNS(NamespaceSupport.XMLNS, "lang");
-//                if (langAttr != null)
-//                    lang = langAttr;
-//            }
-            try {
-                saxHandler.initParse(base, lang);
-            } catch (SAXParseException ex) {
-                LOG.error(ex);
-            }
+            parser.startDocument(((DocumentImpl) doc).getDocId(), config);
+            first = true;
+            root = null;
 
-            if (!cacheModel.isEmpty()) {
-                LOG.warn("TDBStreamListener: Model is not empty at reset");
-                cacheModel.removeAll();
+            if (!triples.isEmpty()) {
+                LOG.warn("TDBStreamListener: triple buffer is not empty at reset");
+                triples.clear();
             }
         }
 
@@ -416,23 +1201,74 @@ public class TDBIndexWorker implements IndexWorker {
 
         @Override
         public void startElement(Txn transaction, ElementImpl element, NodePath path) {
+            if (transaction != null) {
+                currentTxn = transaction;
+            }
             if (deferredElement != null) {
                 processDeferredElement();
             }
+            if (first) {
+                first = false;
+                root = element.getNodeId();
+                startSubtrees(element, path);
+            }
             deferredElement = element;
+            deferredParsed = parser.isParsed(path);
             super.startElement(transaction, element, path);
         }
 
+        /**
+         * @return Node id of the first element streamed, or null
+         */
+        NodeId getRoot() {
+            return root;
+        }
+
+        /**
+         * @param triple Triple of the streamed nodes
+         * @return True if the triple has a blank node generated for the streamed nodes
+         */
+        boolean isLocal(Triple triple) {
+            return parser.isLocal(triple.getSubject()) || parser.isLocal(triple.getObject());
+        }
+
+        /*
+         * Check if the streaming starts at a child of an rdf:RDF island root, see getReindexRoot
+         */
+        private void startSubtrees(ElementImpl element, NodePath path) {
+            NodeId parentId = element.getNodeId().getParentId();
+            if (parentId.getTreeLevel() < 1) {
+                return;
+            }
+            ElementImpl parent = (ElementImpl) broker.objectWith(currentDoc, parentId);
+            if (!isRDFRoot(parent.getNamespaceURI(), parent.getLocalName())) {
+                return;
+            }
+            boolean islandRoot;
+            if (config.hasIncludes()) {
+                NodePath parentPath = new NodePath(path);
+                parentPath.removeLastComponent();
+                islandRoot = config.isIncluded(parentPath);
+            } else {
+                islandRoot = parentId.getTreeLevel() == 1;
+            }
+            if (islandRoot) {
+                parser.startSubtrees(currentDoc.getDocId(), config,
+                        parent.getAttributeNS(Namespaces.XML_NS, "base"),
+                        parent.getAttributeNS(Namespaces.XML_NS, "lang"));
+            }
+        }
+
         @Override
         public void endElement(Txn transaction, ElementImpl element, NodePath path) {
             if (deferredElement != null) {
                 processDeferredElement();
             }
             try {
-                saxHandler.endElement(
+                parser.endElement(
                         element.getNamespaceURI(),
                         element.getLocalName(),
-                        element.getQName().getStringValue());
+                        parser.isParsing() ? qnames.get(element.getQName()) : null);
             } catch (Exception ex) {
                 LOG.error(ex);
             }
@@ -441,13 +1277,15 @@ public class TDBIndexWorker implements IndexWorker {
 
         @Override
         public void attribute(Txn transaction, AttrImpl attrib, NodePath path) {
-            deferredAttribs.addAttribute(
-                    attrib.getNamespaceURI(),
-                    attrib.getLocalName(),
-                    attrib.getQName().getStringValue(),
-                    AttrImpl.getAttributeType(attrib.getType()),
-                    attrib.getValue()
-            );
+            if (deferredParsed) {
+                deferredAttribs.addAttribute(
+                        attrib.getNamespaceURI(),
+                        attrib.getLocalName(),
+                        qnames.get(attrib.getQName()),
+                        AttrImpl.getAttributeType(attrib.getType()),
+                        attrib.getValue()
+                );
+            }
             super.attribute(transaction, attrib, path);
         }
 
@@ -456,8 +1294,21 @@ public class TDBIndexWorker implements IndexWorker {
             if (deferredElement != null) {
                 processDeferredElement();
             }
+            if (!parser.isParsing()) {
+                super.characters(transaction, text, path);
+                return;
+            }
             try {
-                saxHandler.characters(text.getData().toCharArray(), 0, text.getLength());
+                // copy into the reused buffer instead of getData(), which creates a String
+                XMLString data = text.getXMLString();
+                int length = data.length();
+                if (length > chars.length) {
+                    chars = new char[Math.max(length, chars.length * 2)];
+                }
+                for (int i = 0; i < length; i++) {
+                    chars[i] = data.charAt(i);
+                }
+                parser.characters(chars, 0, length);
             } catch (Exception ex) {
                 LOG.error(ex);
             }
@@ -466,13 +1317,17 @@ public class TDBIndexWorker implements IndexWorker {
 
         private void processDeferredElement() {
             try {
-
-                saxHandler.startElement(
-                        deferredElement.getNamespaceURI(),
-                        deferredElement.getLocalName(),
-                        deferredElement.getQName().getStringValue(),
-                        deferredAttribs
-                );
+                if (deferredParsed) {
+                    parser.startElement(
+                            deferredElement.getNamespaceURI(),
+                            deferredElement.getLocalName(),
+                            qnames.get(deferredElement.getQName()),
+                            deferredAttribs,
+                            deferredElement.getNodeId()
+                    );
+                } else {
+                    parser.skipElement();
+                }
             } catch (Exception ex) {
                 LOG.error(ex);
 //                deferredAttribs.clear();
@@ -1,16 +1,30 @@
 package org.exist.indexing.rdf;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.file.DirectoryIteratorException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import com.hp.hpl.jena.query.ARQ;
 import com.hp.hpl.jena.query.Dataset;
-import com.hp.hpl.jena.tdb.StoreConnection;
+import com.hp.hpl.jena.query.QueryExecution;
 import com.hp.hpl.jena.tdb.TDB;
-import com.hp.hpl.jena.tdb.TDBFactory;
 import com.hp.hpl.jena.tdb.base.block.FileMode;
 import com.hp.hpl.jena.tdb.sys.SystemTDB;
 import org.exist.backup.RawDataBackup;
@@ -20,6 +34,9 @@ import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
 import org.exist.storage.btree.DBException;
 import org.exist.util.DatabaseConfigurationException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.TerminatedException;
+import org.exist.xquery.XQueryWatchDog;
 //import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -35,11 +52,32 @@ import org.w3c.dom.NamedNodeMap;
 public class TDBRDFIndex extends RDFIndex implements RawBackupSupport {
 
     private final static Logger LOG = LogManager.getLogger(TDBRDFIndex.class);
-    private Dataset dataset;
-    private StoreConnection connection;
     public static String ID = RDFIndex.ID; //"tdb-rdf-index";
     private static final String DIR_NAME = "tdb";
+    /** name of the store of collections not configured with a store of their own */
+    public static final String DEFAULT_STORE = "default";
+    private static final String STORES_DIR_NAME = "tdb-stores";
+    private static final String QUEUE_DIR_NAME = "tdb-queue";
     protected Path directory;
+    /** store name -> store */
+    private final Map<String, TDBStore> stores = new ConcurrentHashMap<>();
+    private SparqlQueryCache queryCache = new SparqlQueryCache(DEFAULT_QUERY_CACHE_SIZE);
+    private long resultCacheSize = 0;
+    private boolean resultCacheGraphScoped = false;
+    private ScheduledExecutorService timer;
+    /* watches running queries, apart from the timer so a long batch write does not delay aborts */
+    private volatile ScheduledExecutorService queryWatcher;
+    /* 0 for the default */
+    private int reindexThreads = 0;
+    private long queryTimeout = 0;
+    private long maxResults = 0;
+    private SlowQueryLog slowQueryLog = new SlowQueryLog(0, 0);
+    private boolean asyncWrites = false;
+    private int asyncQueueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+    /* background writer, if writes are asynchronous */
+    private volatile AsyncIndexWriter writer;
+    private final RDFIndexMetrics metrics = new RDFIndexMetrics(this);
+    private ObjectName metricsName;
 
     public String getDirName() {
         return DIR_NAME;
@@ -51,36 +89,124 @@ public class TDBRDFIndex extends RDFIndex implements RawBackupSupport {
 	directory = getDataDir();
 
         TDB.getContext().set(TDB.symUnionDefaultGraph, true); // todo: make configurable?
-        connection = StoreConnection.make(getMyDataDir());
+        try {
+            // the default store keeps the layout of an index with a single store
+            openStore(DEFAULT_STORE, super.getDataDir());
+            Path storesDir = super.getDataDir().resolve(STORES_DIR_NAME);
+            if (Files.isDirectory(storesDir)) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(storesDir)) {
+                    for (Path dir : stream) {
+                        String name = dir.getFileName().toString();
+                        if (Files.isDirectory(dir) && !DEFAULT_STORE.equals(name)) {
+                            openStore(name, dir);
+                        }
+                    }
+                }
+            }
+            if (asyncWrites) {
+                writer = new AsyncIndexWriter(this, super.getDataDir().resolve(QUEUE_DIR_NAME), asyncQueueSize);
+                writer.open();
+            }
+        } catch (IOException e) {
+            throw new DatabaseConfigurationException("Failed to open RDF index: " + e.getMessage());
+        }
+
+        // writes batches whose time limit passed without further flushes
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rdf-index-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        queryWatcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rdf-index-query-watcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (TDBStore store : stores.values()) {
+                    try {
+                        store.getWriteBatch().commitIfDue();
+                    } catch (Exception e) {
+                        LOG.error("Failed to write RDF index batch of store " + store.getName() + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+        }, BATCH_TIMER_PERIOD, BATCH_TIMER_PERIOD, TimeUnit.MILLISECONDS);
+
+        try {
+            metricsName = new ObjectName("org.exist.management." + pool.getId() + ":type=RDFIndex");
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            LOG.warn("Failed to register RDF index metrics with JMX: " + e.getMessage());
+            metricsName = null;
+        }
     }
 
     @Override
     public void close() throws DBException {
-        if (dataset != null) {
-            dataset.close();
-            dataset = null;
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                LOG.warn("Failed to unregister RDF index metrics from JMX: " + e.getMessage());
+            }
+            metricsName = null;
         }
-        connection = null;
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        if (timer != null) {
+            timer.shutdown();
+            timer = null;
+        }
+        if (queryWatcher != null) {
+            queryWatcher.shutdown();
+            queryWatcher = null;
+        }
+        for (TDBStore store : stores.values()) {
+            store.close();
+        }
+        stores.clear();
+        queryCache.clear();
         TDB.closedown();
     }
 
     @Override
     public void sync() throws DBException {
-        if (connection != null) {
-            connection.flush();
+        for (TDBStore store : stores.values()) {
+            store.sync();
         }
-        TDB.sync(dataset);
     }
 
     @Override
     public void remove() throws DBException {
+        List<TDBStore> removed = new ArrayList<>(stores.values());
 	close();
-	try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
-	    for (Path file : stream) {
-                Files.delete(file);
+        for (TDBStore store : removed) {
+            store.remove();
+        }
+        // changes still journaled belong to the removed stores
+        Path queueDir = super.getDataDir().resolve(QUEUE_DIR_NAME);
+        if (Files.isDirectory(queueDir)) {
+            try {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(queueDir)) {
+                    for (Path file : stream) {
+                        Files.delete(file);
+                    }
+                }
+                Files.delete(queueDir);
+            } catch (IOException e) {
+                throw new DBException("Failed to delete RDF index journal: " + e.getMessage());
             }
-        } catch (Exception e) {
-            LOG.warn(e.getMessage(), e);
         }
     }
 
@@ -89,24 +215,281 @@ public class TDBRDFIndex extends RDFIndex implements RawBackupSupport {
         return super.getDataDir().resolve(getDirName());
     }
 
+    /**
+     * Create the worker of a broker. Each broker asks once, for its index
+     * controller, which holds the worker for the life of the broker: the
+     * worker and its buffers are reused by every thread the pooled broker
+     * serves, one at a time, and go with the broker. The index keeps no
+     * reference to workers, so it needs no synchronization for them and
+     * holds no workers of brokers gone.
+     * @param broker The broker
+     * @return New worker of the broker
+     */
     @Override
     public IndexWorker getWorker(DBBroker broker) {
-        TDBIndexWorker worker = (TDBIndexWorker) workers.get(broker);
-        if (worker == null) {
-            worker = new TDBIndexWorker(this, broker);
-            workers.put(broker, worker);
-        }
-        return worker;
+        return new TDBIndexWorker(this, broker);
     }
 
+    /**
+     * @return Dataset of the default store
+     */
     public Dataset getDataset() {
-        if (dataset == null) {
-            if (connection == null) {
-                throw new IllegalStateException("TDB was never opened or was already closed");
-	    }
-            dataset = TDBFactory.createDataset(connection.getLocation());
+        return getDefaultStore().getDataset();
+    }
+
+    /**
+     * Begin a read transaction of the default store in the current thread,
+     * unless the thread is in a transaction already.
+     * @return The dataset the transaction was begun on, to be passed to
+     * {@link #endRead(Dataset)}, or null if the thread was in a transaction already
+     */
+    public Dataset beginRead() {
+        return getDefaultStore().beginRead();
+    }
+
+    /**
+     * End a read transaction begun by {@link #beginRead()}.
+     * @param began Result of beginRead
+     */
+    public void endRead(Dataset began) {
+        getDefaultStore().endRead(began);
+    }
+
+    TDBStore getDefaultStore() {
+        TDBStore store = stores.get(DEFAULT_STORE);
+        if (store == null) {
+            throw new IllegalStateException("TDB was never opened or was already closed");
+        }
+        return store;
+    }
+
+    /**
+     * Get a store, opening it if it does not exist yet.
+     * @param name Name of the store
+     * @return The store
+     */
+    TDBStore getStore(String name) {
+        TDBStore store = stores.get(name);
+        if (store != null) {
+            return store;
+        }
+        synchronized (stores) {
+            store = stores.get(name);
+            if (store == null) {
+                try {
+                    store = openStore(name, super.getDataDir().resolve(STORES_DIR_NAME).resolve(name));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to open RDF store " + name + ": " + e.getMessage(), e);
+                }
+            }
+            return store;
+        }
+    }
+
+    /**
+     * @param name Name of a store
+     * @return The store, or null if it does not exist
+     */
+    TDBStore getExistingStore(String name) {
+        return stores.get(name);
+    }
+
+    /**
+     * Close a store and delete its files.
+     * @param name Name of the store
+     * @return False if there is no store of that name
+     */
+    boolean dropStore(String name) {
+        TDBStore store;
+        synchronized (stores) {
+            store = stores.remove(name);
+        }
+        if (store == null) {
+            return false;
+        }
+        store.close();
+        store.delete();
+        return true;
+    }
+
+    /**
+     * @return Names of the stores of the index
+     */
+    public Set<String> getStoreNames() {
+        return new TreeSet<>(stores.keySet());
+    }
+
+    /**
+     * @return Size in bytes of the files of each store, by store name
+     */
+    public Map<String, Long> getStoreSizes() {
+        Map<String, Long> sizes = new TreeMap<>();
+        for (TDBStore store : stores.values()) {
+            sizes.put(store.getName(), store.getSize());
+        }
+        return sizes;
+    }
+
+    /**
+     * @return Metrics of the index
+     */
+    public RDFIndexMetrics getMetrics() {
+        return metrics;
+    }
+
+    private TDBStore openStore(String name, Path root) throws IOException {
+        TDBStore store = new TDBStore(name, root, new SparqlResultCache(resultCacheSize, resultCacheGraphScoped), metrics);
+        store.open();
+        stores.put(name, store);
+        return store;
+    }
+
+    /**
+     * @return Number of parser threads of a parallel reindex, by default
+     * one per processor, but at most half the brokers of the pool, as each
+     * thread holds a broker while parsing
+     */
+    public int getReindexThreads() {
+        if (reindexThreads > 0) {
+            return reindexThreads;
+        }
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), getBrokerPool().getMax() / 2));
+    }
+
+    /**
+     * @return Time in milliseconds after which queries are cancelled, 0 for none
+     */
+    public long getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * @return Number of solutions or triples beyond which query results fail, 0 for none
+     */
+    public long getMaxResults() {
+        return maxResults;
+    }
+
+    /**
+     * Hand the committed changes of a store to the background writer if
+     * writes are asynchronous, else to the write batch of the store.
+     * @param store The store
+     * @param changes Committed changes
+     * @param config Index configuration of the changed documents, or null to write immediately
+     */
+    void write(TDBStore store, DatasetDelta changes, RDFIndexConfig config) {
+        AsyncIndexWriter asyncWriter = writer;
+        if (asyncWriter != null) {
+            asyncWriter.add(store, changes);
+        } else {
+            store.getWriteBatch().add(changes, config);
+        }
+    }
+
+    /**
+     * Wait until the changes of the eXist transactions committed so far
+     * are written to TDB and visible to queries: those queued for the
+     * background writer, and those held in write batches. A thread in a
+     * read transaction, as for an open cursor, keeps the snapshot of the
+     * store it began with and would not see them, so it is refused.
+     * @throws java.lang.InterruptedException Interrupted while waiting
+     * @throws java.io.IOException The background writer fails to write queued changes,
+     * or the current thread is in a transaction of a store
+     */
+    public void awaitWrites() throws InterruptedException, IOException {
+        for (TDBStore store : stores.values()) {
+            if (store.isInTransaction()) {
+                throw new IOException("Cannot wait for RDF index writes in a read transaction of store "
+                        + store.getName() + ", as of an open cursor: it would not see them");
+            }
+        }
+        AsyncIndexWriter asyncWriter = writer;
+        if (asyncWriter != null) {
+            asyncWriter.await();
+        }
+        for (TDBStore store : stores.values()) {
+            store.getWriteBatch().commit();
+        }
+    }
+
+    /**
+     * Whether the changes of committed eXist transactions not yet written
+     * to TDB leave a document indexed. Waits only if the newest of them do
+     * not tell, until those are written.
+     * @param store Store of the document
+     * @param graphURI Graph of the document
+     * @param source Id of the document if the graph is shared, else {@link DatasetDelta#NO_SOURCE}
+     * @return True or false if the changes tell, null if the store tells
+     * @throws java.lang.InterruptedException Interrupted while waiting
+     * @throws java.io.IOException The background writer fails to write the changes of the document
+     */
+    Boolean isIndexedPending(TDBStore store, String graphURI, int source) throws InterruptedException, IOException {
+        AsyncIndexWriter asyncWriter = writer;
+        if (asyncWriter != null) {
+            Boolean indexed = asyncWriter.isIndexed(store, graphURI, source);
+            if (indexed != null) {
+                return indexed;
+            }
+        }
+        return store.getWriteBatch().isIndexed(graphURI, source);
+    }
+
+    /**
+     * @return Number of committed transactions queued for the background writer
+     */
+    long getQueueDepth() {
+        AsyncIndexWriter asyncWriter = writer;
+        return asyncWriter != null ? asyncWriter.getDepth() : 0;
+    }
+
+    /**
+     * @return Log of slow query executions
+     */
+    SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+
+    /**
+     * Abort a query execution when the XQuery running it is killed or
+     * exceeds its timeout, until the returned watch is cancelled. The
+     * XQuery itself only checks its watchdog between expressions, not
+     * while a query executes.
+     * @param context Context of the XQuery
+     * @param qe Query execution
+     * @return The watch, to be cancelled when the execution ends
+     */
+    Future<?> watch(final XQueryContext context, final QueryExecution qe) {
+        ScheduledExecutorService watcher = queryWatcher;
+        if (watcher == null) {
+            // closed
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            return watcher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    XQueryWatchDog watchDog = context.getWatchDog();
+                    if (watchDog == null) {
+                        return;
+                    }
+                    try {
+                        watchDog.proceed(null);
+                    } catch (TerminatedException e) {
+                        qe.abort();
+                    }
+                }
+            }, WATCH_PERIOD, WATCH_PERIOD, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+            return CompletableFuture.completedFuture(null);
         }
-        return dataset;
+    }
+
+    /**
+     * @return Cache of parsed SPARQL queries
+     */
+    public SparqlQueryCache getQueryCache() {
+        return queryCache;
     }
 
     @Override
@@ -114,13 +497,6 @@ public class TDBRDFIndex extends RDFIndex implements RawBackupSupport {
         return ID;
     }
 
-    private String getMyDataDir() {
-	if (directory == null) {
-	    directory = getDataDir();
-	}
-        return directory.toAbsolutePath().toString();
-    }
-
     @Override
     public void configure(BrokerPool pool, Path dataDir, Element config) throws DatabaseConfigurationException {
         super.configure(pool, dataDir, config);
@@ -132,6 +508,16 @@ public class TDBRDFIndex extends RDFIndex implements RawBackupSupport {
         /*
          * Some configurables.
          */
+        int queryCacheSize = DEFAULT_QUERY_CACHE_SIZE;
+        resultCacheSize = 0;
+        resultCacheGraphScoped = false;
+        queryTimeout = 0;
+        maxResults = 0;
+        int slowQueryThreshold = 0;
+        int slowQuerySample = DEFAULT_SLOW_QUERY_SAMPLE;
+        asyncWrites = false;
+        asyncQueueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+        reindexThreads = 0;
         NamedNodeMap attributes = config.getAttributes();
         for (int i = 0; i < attributes.getLength(); i++) {
             Attr attr = (Attr) attributes.item(i);
@@ -145,28 +531,62 @@ public class TDBRDFIndex extends RDFIndex implements RawBackupSupport {
                 if (attr.getValue().equals(CFG_LOG_EXEC_TRUE)) {
                     ARQ.isTrue(ARQ.symLogExec);
                 }
+            } else if (attr.getName().equals(CFG_QUERY_CACHE_SIZE)) {
+                queryCacheSize = parseInt(attr);
+            } else if (attr.getName().equals(CFG_RESULT_CACHE_SIZE)) {
+                resultCacheSize = parseInt(attr) * 1024L * 1024L;
+            } else if (attr.getName().equals(CFG_RESULT_CACHE_GRAPH_SCOPED)) {
+                resultCacheGraphScoped = attr.getValue().equals(CFG_TRUE);
+            } else if (attr.getName().equals(CFG_QUERY_TIMEOUT)) {
+                queryTimeout = parseInt(attr);
+            } else if (attr.getName().equals(CFG_MAX_RESULTS)) {
+                maxResults = parseInt(attr);
+            } else if (attr.getName().equals(CFG_SLOW_QUERY_THRESHOLD)) {
+                slowQueryThreshold = parseInt(attr);
+            } else if (attr.getName().equals(CFG_SLOW_QUERY_SAMPLE)) {
+                slowQuerySample = parseInt(attr);
+            } else if (attr.getName().equals(CFG_ASYNC_WRITES)) {
+                asyncWrites = attr.getValue().equals(CFG_TRUE);
+            } else if (attr.getName().equals(CFG_ASYNC_QUEUE_SIZE)) {
+                asyncQueueSize = parseInt(attr);
+                if (asyncQueueSize <= 0) {
+                    throw new DatabaseConfigurationException(CFG_ASYNC_QUEUE_SIZE + " must be positive: " + attr.getValue());
+                }
+            } else if (attr.getName().equals(CFG_REINDEX_THREADS)) {
+                reindexThreads = parseInt(attr);
+                if (reindexThreads <= 0) {
+                    throw new DatabaseConfigurationException(CFG_REINDEX_THREADS + " must be positive: " + attr.getValue());
+                }
             }
         }
 
+        // parsed queries do not survive a reconfiguration, results are cached per store once opened
+        queryCache = new SparqlQueryCache(queryCacheSize);
+        slowQueryLog = new SlowQueryLog(slowQueryThreshold, slowQuerySample);
+
 //        TDB.transactionJournalWriteBlockMode
     }
 
+    private static int parseInt(Attr attr) throws DatabaseConfigurationException {
+        try {
+            return Integer.parseInt(attr.getValue().trim());
+        } catch (NumberFormatException e) {
+            throw new DatabaseConfigurationException("Invalid value for " + attr.getName() + ": " + attr.getValue());
+        }
+    }
+
     @Override
     public void backupToArchive(RawDataBackup backup) throws IOException {
-	try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
-	    for (Path file : stream) {
-		String path = file.getFileName().toString();
-		try (final OutputStream os = backup.newEntry(path)) {
-		    Files.copy(getDataDir().resolve(path), os);
-		} finally {
-		    backup.closeEntry();
-		}
-	    }
-	} catch (IOException | DirectoryIteratorException die) {
-	    LOG.error("Could not read directory: " + directory.toAbsolutePath().toString());
-	}
+        for (TDBStore store : stores.values()) {
+            store.backupToArchive(backup, DEFAULT_STORE.equals(store.getName())
+                    ? "" : STORES_DIR_NAME + "/" + store.getName() + "/");
+        }
     }
 
+    private final static long BATCH_TIMER_PERIOD = 1000;
+    /* how often running queries check for a kill of their XQuery */
+    private final static long WATCH_PERIOD = 250;
+
     private final static String CFG_FILE_MODE = "fileMode";
     private final static String CFG_FILE_MODE_MAPPED = "mapped";
     private final static String CFG_FILE_MODE_DIRECT = "direct";
@@ -174,4 +594,29 @@ public class TDBRDFIndex extends RDFIndex implements RawBackupSupport {
     private final static String CFG_LOG_EXEC = "logExec";
     private final static String CFG_LOG_EXEC_TRUE = "true";
 
+    private final static String CFG_TRUE = "true";
+
+    private final static String CFG_QUERY_CACHE_SIZE = "queryCacheSize";
+    private final static int DEFAULT_QUERY_CACHE_SIZE = 128;
+
+    /* result cache size in megabytes */
+    private final static String CFG_RESULT_CACHE_SIZE = "resultCacheSize";
+    private final static String CFG_RESULT_CACHE_GRAPH_SCOPED = "resultCacheGraphScoped";
+
+    private final static String CFG_REINDEX_THREADS = "reindexThreads";
+
+    /* query limits, 0 for none */
+    private final static String CFG_QUERY_TIMEOUT = "queryTimeout";
+    private final static String CFG_MAX_RESULTS = "maxResults";
+
+    /* slow query log threshold in milliseconds, 0 for none, and one in how many executions are profiled */
+    private final static String CFG_SLOW_QUERY_THRESHOLD = "slowQueryThreshold";
+    private final static String CFG_SLOW_QUERY_SAMPLE = "slowQuerySample";
+    private final static int DEFAULT_SLOW_QUERY_SAMPLE = 100;
+
+    /* writes by a background writer, and how many committed transactions it queues at most */
+    private final static String CFG_ASYNC_WRITES = "asyncWrites";
+    private final static String CFG_ASYNC_QUEUE_SIZE = "asyncQueueSize";
+    private final static int DEFAULT_ASYNC_QUEUE_SIZE = 1000;
+
 }
@@ -0,0 +1,481 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.ReadWrite;
+import com.hp.hpl.jena.tdb.StoreConnection;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.tdb.TDBLoader;
+import com.hp.hpl.jena.tdb.base.file.Location;
+import com.hp.hpl.jena.tdb.store.DatasetGraphTDB;
+import com.hp.hpl.jena.tdb.transaction.TDBTransactionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.backup.RawDataBackup;
+import org.exist.storage.btree.DBException;
+
+/**
+ * One TDB location of the RDF index, with its own store connection, side
+ * table, write batch, result cache and optimizer statistics. Stores are independent: a write
+ * transaction or bulk load of one store does not hold up the writers and
+ * queries of the others.
+ */
+class TDBStore {
+
+    private static final Logger LOG = LogManager.getLogger(TDBStore.class);
+
+    private static final String DIR_NAME = "tdb";
+    private static final String SOURCES_DIR_NAME = "tdb-sources";
+    /* how long a bulk load or reconnect waits for running transactions */
+    private static final long BULK_LOAD_WAIT = 60000;
+
+    private final String name;
+    private final Path root;
+    private final Path directory;
+    private final TripleSources sources;
+    private final TDBWriteBatch writeBatch = new TDBWriteBatch(this);
+    private final SparqlResultCache resultCache;
+    private final RDFIndexMetrics metrics;
+    private final StoreStatistics statistics = new StoreStatistics();
+    /* held by read transactions, and exclusively while a bulk load or analyze swaps the connection */
+    private final ReentrantReadWriteLock connectionLock = new ReentrantReadWriteLock();
+    private volatile StoreConnection connection;
+    private volatile Dataset dataset;
+
+    /**
+     * @param name Name of the store
+     * @param root Directory of the store files
+     * @param resultCache Cache of the query results of the store
+     * @param metrics Metrics of the index
+     */
+    TDBStore(String name, Path root, SparqlResultCache resultCache, RDFIndexMetrics metrics) {
+        this.name = name;
+        this.root = root;
+        this.directory = root.resolve(DIR_NAME);
+        this.sources = new TripleSources(root.resolve(SOURCES_DIR_NAME));
+        this.resultCache = resultCache;
+        this.metrics = metrics;
+    }
+
+    void open() throws IOException {
+        Files.createDirectories(directory);
+        connection = StoreConnection.make(directory.toAbsolutePath().toString());
+        sources.open();
+        if (!statistics.read(getStatisticsFile()) && isEmpty()) {
+            statistics.empty();
+        }
+    }
+
+    void close() {
+        if (connection != null) {
+            writeBatch.commit();
+            writeStatistics();
+        }
+        Dataset ds = dataset;
+        dataset = null;
+        if (ds != null) {
+            ds.close();
+        }
+        sources.close();
+        connection = null;
+        resultCache.clear();
+    }
+
+    void sync() {
+        StoreConnection conn = connection;
+        if (conn != null) {
+            writeBatch.commit();
+            // write committed transactions from the journal to the database files
+            conn.flush();
+            sources.flush();
+            writeStatistics();
+        }
+    }
+
+    private void writeStatistics() {
+        try {
+            statistics.write(getStatisticsFile());
+        } catch (IOException e) {
+            LOG.warn("Failed to write statistics of RDF store " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the store files, after closing the store.
+     */
+    void remove() {
+        deleteFiles(directory);
+        deleteFiles(sources.getDirectory());
+    }
+
+    /**
+     * Delete the store files and directories, after closing the store, so
+     * that it is not opened again.
+     */
+    void delete() {
+        remove();
+        try {
+            Files.deleteIfExists(directory);
+            Files.deleteIfExists(sources.getDirectory());
+            deleteFiles(root);
+            Files.deleteIfExists(root);
+        } catch (IOException e) {
+            LOG.warn("Failed to delete RDF store " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return Directory of the store files
+     */
+    Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @return File of the optimizer statistics, read by TDB when connecting
+     */
+    Path getStatisticsFile() {
+        return directory.resolve(StoreStatistics.FILE_NAME);
+    }
+
+    /**
+     * @return Directory of the TDB files of the store
+     */
+    Path getDirectory() {
+        return directory;
+    }
+
+    Dataset getDataset() {
+        Dataset ds = dataset;
+        if (ds == null) {
+            synchronized (this) {
+                ds = dataset;
+                if (ds == null) {
+                    StoreConnection conn = connection;
+                    if (conn == null) {
+                        throw new IllegalStateException("TDB was never opened or was already closed");
+                    }
+                    ds = TDBFactory.createDataset(conn.getLocation());
+                    dataset = ds;
+                }
+            }
+        }
+        return ds;
+    }
+
+    /**
+     * Begin a read transaction of the current thread, unless the thread is
+     * in a transaction already. A bulk load or analyze waits for the
+     * transaction to end before it reconnects the store.
+     * @return The dataset the transaction was begun on, to be passed to
+     * {@link #endRead(Dataset)}, or null if the thread was in a transaction already
+     */
+    Dataset beginRead() {
+        connectionLock.readLock().lock();
+        try {
+            Dataset ds = getDataset();
+            if (ds.isInTransaction()) {
+                connectionLock.readLock().unlock();
+                return null;
+            }
+            ds.begin(ReadWrite.READ);
+            metrics.readerStarted();
+            return ds;
+        } catch (RuntimeException e) {
+            connectionLock.readLock().unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * @return True if the current thread is in a transaction of the store
+     */
+    boolean isInTransaction() {
+        return connection != null && getDataset().isInTransaction();
+    }
+
+    /**
+     * End a read transaction begun by {@link #beginRead()}.
+     * @param began Result of beginRead
+     */
+    void endRead(Dataset began) {
+        if (began != null) {
+            try {
+                began.end();
+            } finally {
+                connectionLock.readLock().unlock();
+                metrics.readerEnded();
+            }
+        }
+    }
+
+    /**
+     * @return True if the store holds no triples and has no pending changes
+     */
+    boolean isEmpty() {
+        writeBatch.commit();
+        Dataset began = beginRead();
+        try {
+            return getDataset().asDatasetGraph().isEmpty();
+        } finally {
+            endRead(began);
+        }
+    }
+
+    /**
+     * Load the quads of an N-Quads file with the TDB bulk loader, which
+     * writes the node and primary index tables first and builds the other
+     * indexes from them afterwards, instead of inserting into every index
+     * triple by triple. The bulk loader bypasses transactions, so it waits
+     * for running queries of the store to end and holds off its writes
+     * and new queries until done. The store is analyzed afterwards, see
+     * {@link #analyze()}.
+     * @param nquads N-Quads file to load
+     * @param sourceQuads N-Quads file of side table entries to load, see {@link TripleSources#quad}
+     * @param replace True to replace the whole store content by the files
+     * @throws org.exist.storage.btree.DBException Store in use or I/O error
+     */
+    void bulkLoad(Path nquads, Path sourceQuads, boolean replace) throws DBException {
+        synchronized (writeBatch) {
+            writeBatch.commit();
+            Location location = disconnect();
+            try {
+                if (replace) {
+                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                        for (Path file : stream) {
+                            Files.delete(file);
+                        }
+                    }
+                }
+                connection = StoreConnection.make(location);
+
+                long start = System.nanoTime();
+                DatasetGraphTDB dsg = connection.getBaseDataset();
+                TDBLoader.load(dsg, Collections.singletonList(nquads.toUri().toString()), false);
+                dsg.sync();
+                try {
+                    if (replace || Files.size(sourceQuads) != 0) {
+                        sources.bulkLoad(sourceQuads, replace);
+                    }
+                } catch (IOException e) {
+                    throw new DBException("Failed to load side table of RDF store " + name + ": " + e.getMessage());
+                }
+                resultCache.clear();
+                metrics.bulkLoaded(System.nanoTime() - start);
+                LOG.info("Bulk loaded RDF store " + name + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+            } catch (IOException e) {
+                throw new DBException("Failed to clear RDF store " + name + " for bulk load: " + e.getMessage());
+            } finally {
+                reconnect(location);
+            }
+            analyze();
+        }
+    }
+
+    /**
+     * Recount the optimizer statistics of the store, write them and
+     * reconnect to TDB, which only reads them when connecting. Like a bulk
+     * load, it waits for running queries of the store to end and holds off
+     * its writes and new queries until reconnected.
+     * @return Number of triples counted
+     * @throws org.exist.storage.btree.DBException Store in use or I/O error
+     */
+    long analyze() throws DBException {
+        synchronized (writeBatch) {
+            writeBatch.commit();
+            long start = System.nanoTime();
+            Dataset began = beginRead();
+            try {
+                statistics.scan(getDataset().asDatasetGraph());
+            } finally {
+                endRead(began);
+            }
+            try {
+                statistics.write(getStatisticsFile());
+            } catch (IOException e) {
+                throw new DBException("Failed to write statistics of RDF store " + name + ": " + e.getMessage());
+            }
+
+            reconnect(disconnect());
+            LOG.info("Analyzed RDF store " + name + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+            return statistics.getTriples();
+        }
+    }
+
+    /*
+     * Wait for the read transactions of the store to end, holding off new
+     * ones, and close the store connection. The caller holds off writes
+     * and must call reconnect afterwards.
+     */
+    private Location disconnect() throws DBException {
+        try {
+            if (!connectionLock.writeLock().tryLock(BULK_LOAD_WAIT, TimeUnit.MILLISECONDS)) {
+                throw new DBException("RDF store " + name + " still in use by queries, giving up");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DBException("Interrupted waiting for the queries of RDF store " + name + " to end");
+        }
+        Location location = connection.getLocation();
+        try {
+            Dataset ds = dataset;
+            dataset = null;
+            if (ds != null) {
+                ds.close();
+            }
+            connection = null;
+            releaseConnection(location);
+            return location;
+        } catch (DBException | RuntimeException e) {
+            reconnect(location);
+            throw e;
+        }
+    }
+
+    /*
+     * Connect again after disconnect, letting queries in
+     */
+    private void reconnect(Location location) {
+        try {
+            if (connection == null) {
+                connection = StoreConnection.make(location);
+            }
+        } finally {
+            connectionLock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Close the store connection once no transactions are active, such as
+     * write transactions still ending
+     */
+    static void releaseConnection(Location location) throws DBException {
+        long deadline = System.currentTimeMillis() + BULK_LOAD_WAIT;
+        while (true) {
+            try {
+                StoreConnection.release(location);
+                return;
+            } catch (TDBTransactionException e) {
+                if (System.currentTimeMillis() >= deadline) {
+                    throw new DBException("RDF index still in use, giving up: " + e.getMessage());
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new DBException("Interrupted waiting for RDF index transactions to end");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Size in bytes of the files of the store and its side table
+     */
+    long getSize() {
+        return size(directory) + size(sources.getDirectory());
+    }
+
+    private static long size(Path dir) {
+        long size = 0;
+        if (!Files.isDirectory(dir)) {
+            return size;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                size += Files.size(file);
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            LOG.warn("Could not read directory: " + dir.toAbsolutePath().toString());
+        }
+        return size;
+    }
+
+    /**
+     * @return Metrics of the index
+     */
+    RDFIndexMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Optimizer statistics of the store
+     */
+    StoreStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return Changes waiting to be written to TDB
+     */
+    TDBWriteBatch getWriteBatch() {
+        return writeBatch;
+    }
+
+    /**
+     * @return Side table of the graphs shared by several documents
+     */
+    TripleSources getSources() {
+        return sources;
+    }
+
+    /**
+     * @return Cache of the query results of the store
+     */
+    SparqlResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Add the store files to a backup.
+     * @param backup The backup
+     * @param prefix Path of the store in the backup, empty or ending with /
+     */
+    void backupToArchive(RawDataBackup backup, String prefix) {
+        backupFiles(backup, directory, prefix);
+        backupFiles(backup, sources.getDirectory(), prefix + SOURCES_DIR_NAME + "/");
+    }
+
+    private static void backupFiles(RawDataBackup backup, Path dir, String prefix) {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                try (final OutputStream os = backup.newEntry(prefix + file.getFileName())) {
+                    Files.copy(file, os);
+                } finally {
+                    backup.closeEntry();
+                }
+            }
+        } catch (IOException | DirectoryIteratorException die) {
+            LOG.error("Could not read directory: " + dir.toAbsolutePath().toString());
+        }
+    }
+
+    private static void deleteFiles(Path dir) {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                Files.delete(file);
+            }
+        } catch (Exception e) {
+            LOG.warn(e.getMessage(), e);
+        }
+    }
+
+}
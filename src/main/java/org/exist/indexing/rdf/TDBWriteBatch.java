@@ -0,0 +1,157 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.ReadWrite;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Changes to a store of the RDF index collected from any number of
+ * committed eXist transactions and written to TDB in one write transaction,
+ * once the batch limits of a document's index configuration are reached or
+ * the index is synced. Changes not yet written are not visible to queries.
+ */
+class TDBWriteBatch {
+
+    private static final Logger LOG = LogManager.getLogger(TDBWriteBatch.class);
+
+    private final TDBStore store;
+    private final DatasetDelta pending = new DatasetDelta();
+    /** time at which the batch must be written, or 0 if empty */
+    private long deadline = 0;
+
+    TDBWriteBatch(TDBStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Add committed changes.
+     * @param changes Changes to add
+     * @param config Index configuration of the changed documents, or null to write immediately
+     */
+    synchronized void add(DatasetDelta changes, RDFIndexConfig config) {
+        pending.addAll(changes);
+        if (config == null || !config.isBatched()) {
+            commit();
+            return;
+        }
+        if (deadline == 0) {
+            deadline = System.currentTimeMillis() + config.getBatchMillis();
+        }
+        if (pending.getDocuments() >= config.getBatchDocuments() || pending.getTriples() >= config.getBatchTriples()
+                || System.currentTimeMillis() >= deadline) {
+            commit();
+        }
+    }
+
+    /**
+     * Write the batch if its time limit has passed.
+     */
+    synchronized void commitIfDue() {
+        if (deadline != 0 && System.currentTimeMillis() >= deadline) {
+            commit();
+        }
+    }
+
+    /**
+     * Whether the pending changes leave a document indexed, writing them
+     * first if they change the document without telling.
+     * @param graphURI Graph of the document
+     * @param source Id of the document if the graph is shared, else {@link DatasetDelta#NO_SOURCE}
+     * @return True or false if the pending changes tell, null if the store tells
+     */
+    synchronized Boolean isIndexed(String graphURI, int source) {
+        if (!pending.changes(graphURI, source)) {
+            return null;
+        }
+        Boolean indexed = pending.isIndexed(graphURI, source);
+        if (indexed == null) {
+            commit();
+        }
+        return indexed;
+    }
+
+    /**
+     * Write all pending changes to TDB, in one write transaction. A TDB
+     * transaction is bound to its thread, so a thread in a read
+     * transaction of the store, as for an open cursor, cannot write: the
+     * changes are then left pending, for the next commit of another call
+     * or thread, and false is returned.
+     * @return True if no changes are left pending
+     */
+    synchronized boolean commit() {
+        if (pending.isEmpty()) {
+            return true;
+        }
+        Dataset dataset = store.getDataset();
+        if (dataset.isInTransaction()) {
+            LOG.debug("Postponing RDF index write in read transaction");
+            return false;
+        }
+
+        long start = System.nanoTime();
+        store.getMetrics().writerStarted();
+        try {
+            if (pending.hasSources()) {
+                writeSourced(dataset, store.getSources().getDataset());
+            } else {
+                dataset.begin(ReadWrite.WRITE);
+                try {
+                    pending.apply(dataset.asDatasetGraph(), null, store.getStatistics());
+                    dataset.commit();
+                } finally {
+                    dataset.end();
+                }
+            }
+        } finally {
+            store.getMetrics().writerEnded();
+        }
+        long nanos = System.nanoTime() - start;
+        store.getMetrics().flushed(pending.getAddedTriples(), pending.getRemovedTriples(), nanos);
+
+        for (String graphURI : pending.getGraphs()) {
+            store.getResultCache().invalidate(graphURI);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Wrote " + pending.getDocuments() + " documents, " + pending.getTriples() + " triples in "
+                    + nanos / 1000000 + " ms");
+        }
+        pending.clear();
+        deadline = 0;
+        return true;
+    }
+
+    /*
+     * Write changes to graphs shared by several documents, and their side
+     * table. The store and the side table commit one after the other, so
+     * a crash can lose the second commit. A source without its triple is
+     * harmless, but a triple without a source is never removed. Removals
+     * are therefore committed to the store first and additions to the
+     * side table first, in two write transactions. Queries between them
+     * see the removals without the additions.
+     */
+    private void writeSourced(Dataset dataset, Dataset sources) {
+        dataset.begin(ReadWrite.WRITE);
+        sources.begin(ReadWrite.WRITE);
+        try {
+            pending.applyRemovals(dataset.asDatasetGraph(), sources.asDatasetGraph(), store.getStatistics());
+            dataset.commit();
+            sources.commit();
+        } finally {
+            sources.end();
+            dataset.end();
+        }
+
+        dataset.begin(ReadWrite.WRITE);
+        sources.begin(ReadWrite.WRITE);
+        try {
+            pending.applyAdditions(dataset.asDatasetGraph(), sources.asDatasetGraph(), store.getStatistics());
+            sources.commit();
+            dataset.commit();
+        } finally {
+            sources.end();
+            dataset.end();
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.graph.Triple;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Append-only buffer of the triples parsed from a document, before they
+ * are handed to a {@link DatasetDelta}. Unlike an in-memory graph it keeps
+ * no indexes, so adding a triple is an array store, and it is read once in
+ * insertion order. It does not drop duplicate triples, the delta does.
+ * <p>
+ * Clearing keeps the array for the next document, unless a large document
+ * grew it beyond {@link #RETAINED_CAPACITY}.
+ */
+class TripleBuffer extends AbstractList<Triple> implements RandomAccess {
+
+    private static final int INITIAL_CAPACITY = 256;
+    /* capacity kept by a cleared buffer */
+    private static final int RETAINED_CAPACITY = 64 * 1024;
+
+    private Triple[] triples = new Triple[INITIAL_CAPACITY];
+    private int size = 0;
+
+    @Override
+    public boolean add(Triple triple) {
+        if (size == triples.length) {
+            triples = Arrays.copyOf(triples, size * 2);
+        }
+        triples[size++] = triple;
+        return true;
+    }
+
+    @Override
+    public Triple get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return triples[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Object[] toArray() {
+        return Arrays.copyOf(triples, size, Object[].class);
+    }
+
+    @Override
+    public void clear() {
+        if (triples.length > RETAINED_CAPACITY) {
+            triples = new Triple[INITIAL_CAPACITY];
+        } else {
+            // release the nodes of the last document
+            Arrays.fill(triples, 0, size, null);
+        }
+        size = 0;
+    }
+
+}
@@ -0,0 +1,241 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.ReadWrite;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
+import com.hp.hpl.jena.tdb.StoreConnection;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.tdb.TDBLoader;
+import com.hp.hpl.jena.tdb.base.file.Location;
+import com.hp.hpl.jena.tdb.store.DatasetGraphTDB;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.exist.storage.btree.DBException;
+
+/**
+ * Side table of the graphs shared by several documents, in a TDB store of
+ * its own, recording which documents state which triples of a graph. A
+ * triple removed from a document is only removed from the graph once no
+ * other document states it.
+ * <p>
+ * For each document and triple it holds one quad, named by the graph, of
+ * the document id and a 55 bit hash of the triple. TDB stores the hash
+ * inline in its node id, so the table has no node table entries per triple.
+ * Triples with the same hash are counted as one, which for hashes of this
+ * size only matters for very large graphs.
+ */
+class TripleSources {
+
+    private static final Node STATES = NodeFactory.createURI("urn:x-exist:rdf:states");
+    private static final String DOCUMENT_PREFIX = "urn:x-exist:document:";
+    /* largest value TDB stores inline for xsd:long */
+    private static final long HASH_MASK = (1L << 55) - 1;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Path directory;
+    /* held by lookups, and exclusively while a bulk load swaps the connection */
+    private final ReentrantReadWriteLock connectionLock = new ReentrantReadWriteLock();
+    private volatile StoreConnection connection;
+    private volatile Dataset dataset;
+
+    /**
+     * @param directory Directory of the TDB store
+     */
+    TripleSources(Path directory) {
+        this.directory = directory;
+    }
+
+    void open() throws IOException {
+        Files.createDirectories(directory);
+        connection = StoreConnection.make(directory.toAbsolutePath().toString());
+    }
+
+    void close() {
+        Dataset ds = dataset;
+        dataset = null;
+        if (ds != null) {
+            ds.close();
+        }
+        connection = null;
+    }
+
+    /**
+     * Write committed transactions from the journal to the database files
+     */
+    void flush() {
+        StoreConnection conn = connection;
+        if (conn != null) {
+            conn.flush();
+        }
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    Dataset getDataset() {
+        Dataset ds = dataset;
+        if (ds == null) {
+            synchronized (this) {
+                ds = dataset;
+                if (ds == null) {
+                    StoreConnection conn = connection;
+                    if (conn == null) {
+                        throw new IllegalStateException("TDB was never opened or was already closed");
+                    }
+                    ds = TDBFactory.createDataset(conn.getLocation());
+                    dataset = ds;
+                }
+            }
+        }
+        return ds;
+    }
+
+    /**
+     * @param graphURI A graph
+     * @param docId Id of a document
+     * @return True if the document states any triples in the graph
+     */
+    boolean contains(String graphURI, int docId) {
+        connectionLock.readLock().lock();
+        try {
+            Dataset ds = getDataset();
+            boolean began = !ds.isInTransaction();
+            if (began) {
+                ds.begin(ReadWrite.READ);
+            }
+            try {
+                Iterator<Quad> it = ds.asDatasetGraph().find(NodeFactory.createURI(graphURI), document(docId), STATES, Node.ANY);
+                return it.hasNext();
+            } finally {
+                if (began) {
+                    ds.end();
+                }
+            }
+        } finally {
+            connectionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Load an N-Quads file of {@link #quad} quads with the TDB bulk loader.
+     * The caller holds off writes, see {@link TDBStore#bulkLoad}.
+     * @param nquads N-Quads file to load
+     * @param replace True to replace the whole table by the file
+     */
+    void bulkLoad(Path nquads, boolean replace) throws IOException, DBException {
+        // lookups are short, wait for them and hold off new ones until loaded
+        connectionLock.writeLock().lock();
+        try {
+            Dataset ds = dataset;
+            dataset = null;
+            if (ds != null) {
+                ds.close();
+            }
+            Location location = connection.getLocation();
+            connection = null;
+            try {
+                TDBStore.releaseConnection(location);
+                if (replace) {
+                    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                        for (Path file : stream) {
+                            Files.delete(file);
+                        }
+                    }
+                }
+            } finally {
+                connection = StoreConnection.make(location);
+            }
+            DatasetGraphTDB dsg = connection.getBaseDataset();
+            TDBLoader.load(dsg, Collections.singletonList(nquads.toUri().toString()), false);
+            dsg.sync();
+        } finally {
+            connectionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Record that a document states a triple.
+     * @param sources Dataset of the table, in a write transaction
+     * @param graph Graph of the triple
+     * @param document Node of the document, see {@link #document}
+     * @param triple The triple
+     */
+    static void add(DatasetGraph sources, Node graph, Node document, Triple triple) {
+        sources.add(graph, document, STATES, hash(triple));
+    }
+
+    /**
+     * Record that a document no longer states a triple.
+     * @param sources Dataset of the table, in a write transaction
+     * @param graph Graph of the triple
+     * @param document Node of the document, see {@link #document}
+     * @param triple The triple
+     * @return True if no other document states the triple
+     */
+    static boolean remove(DatasetGraph sources, Node graph, Node document, Triple triple) {
+        Node hash = hash(triple);
+        sources.delete(graph, document, STATES, hash);
+        Iterator<Quad> it = sources.find(graph, Node.ANY, STATES, hash);
+        return !it.hasNext();
+    }
+
+    /**
+     * Forget the sources of all triples of a dropped graph.
+     * @param sources Dataset of the table, in a write transaction
+     * @param graph The graph
+     */
+    static void removeGraph(DatasetGraph sources, Node graph) {
+        sources.deleteAny(graph, Node.ANY, Node.ANY, Node.ANY);
+    }
+
+    /**
+     * @param docId Id of a document
+     * @return Node of the document in the table
+     */
+    static Node document(int docId) {
+        return NodeFactory.createURI(DOCUMENT_PREFIX + docId);
+    }
+
+    /**
+     * @return The quad recording that a document states a triple, for bulk loading
+     */
+    static Quad quad(Node graph, Node document, Triple triple) {
+        return new Quad(graph, document, STATES, hash(triple));
+    }
+
+    /*
+     * 64 bit FNV-1a hash of the N-Triples form of the triple, cut to 55 bits
+     */
+    private static Node hash(Triple triple) {
+        long h = FNV_OFFSET;
+        h = hash(h, FmtUtils.stringForNode(triple.getSubject()));
+        h = hash(h, FmtUtils.stringForNode(triple.getPredicate()));
+        h = hash(h, FmtUtils.stringForNode(triple.getObject()));
+        return NodeFactory.createLiteral(Long.toString(h & HASH_MASK), XSDDatatype.XSDlong);
+    }
+
+    private static long hash(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= FNV_PRIME;
+        }
+        // separator, so that the node boundaries count
+        h ^= ' ';
+        h *= FNV_PRIME;
+        return h;
+    }
+
+}
@@ -1,17 +1,25 @@
 package org.exist.xquery.modules.rdf;
 
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.exist.dom.QName;
+import org.exist.indexing.rdf.SparqlQueryOptions;
 import org.exist.indexing.rdf.TDBIndexWorker;
 import org.exist.indexing.rdf.TDBRDFIndex;
 import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
 import org.exist.xquery.value.EmptySequence;
 import org.exist.xquery.value.FunctionParameterSequenceType;
 import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.IntegerValue;
 import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
 import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.StringValue;
 import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
 
 /**
  *
@@ -29,7 +37,46 @@ public class FunSparql extends BasicFunction {
             new SequenceType[]{
                 new FunctionParameterSequenceType("sparql-query", Type.STRING, Cardinality.EXACTLY_ONE, "SPARQL query string")
             },
-            new FunctionReturnSequenceType(Type.NODE, Cardinality.EXACTLY_ONE, "Solution set of query $sparql-query"))
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.EXACTLY_ONE, "Solution set of query $sparql-query")),
+	new FunctionSignature(
+            new QName("query-page", SparqlModule.NAMESPACE_URI, null),
+            "Returns one page of the solution set to the SPARQL SELECT query $sparql-query from the RDF index, " +
+            "skipping the first $offset solutions and returning at most $limit. Only the solutions of the page are evaluated.",
+            new SequenceType[]{
+                new FunctionParameterSequenceType("sparql-query", Type.STRING, Cardinality.EXACTLY_ONE, "SPARQL SELECT query string"),
+                new FunctionParameterSequenceType("offset", Type.INTEGER, Cardinality.EXACTLY_ONE, "Number of solutions to skip"),
+                new FunctionParameterSequenceType("limit", Type.INTEGER, Cardinality.EXACTLY_ONE, "Maximum number of solutions to return")
+            },
+            new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.ZERO_OR_MORE, "One sparql:result element per solution")),
+	new FunctionSignature(
+            new QName("query", SparqlModule.NAMESPACE_URI, null),
+            "Returns the solution set to the SPARQL query $sparql-query from the RDF index stores named $stores. " +
+            "With several stores, the query is evaluated over their union. Not all query types are supported.",
+            new SequenceType[]{
+                new FunctionParameterSequenceType("sparql-query", Type.STRING, Cardinality.EXACTLY_ONE, "SPARQL query string"),
+                new FunctionParameterSequenceType("stores", Type.STRING, Cardinality.ZERO_OR_MORE, "Names of the stores to query, the default store if empty")
+            },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.EXACTLY_ONE, "Solution set of query $sparql-query")),
+	new FunctionSignature(
+            new QName("stores", SparqlModule.NAMESPACE_URI, null),
+            "Returns the names of the stores of the RDF index.",
+            null,
+            new FunctionReturnSequenceType(Type.STRING, Cardinality.ONE_OR_MORE, "Store names")),
+	new FunctionSignature(
+            new QName("query", SparqlModule.NAMESPACE_URI, null),
+            "Returns the solution set to the SPARQL query $sparql-query from the RDF index stores named $stores, " +
+            "with the options $options: 'timeout', the time in milliseconds after which the query is cancelled, " +
+            "'max-results', the number of solutions or triples beyond which the query fails, both capped by the limits " +
+            "configured for the index, and 'format', one of 'xml' (default), 'json', 'csv', 'tsv' or 'map'. Results in " +
+            "formats other than XML are built without a results document, and are only available for SELECT and ASK " +
+            "queries: JSON, CSV and TSV as a string, 'map' as one map per solution from variable name to typed value, " +
+            "or a boolean for ASK. Not all query types are supported.",
+            new SequenceType[]{
+                new FunctionParameterSequenceType("sparql-query", Type.STRING, Cardinality.EXACTLY_ONE, "SPARQL query string"),
+                new FunctionParameterSequenceType("stores", Type.STRING, Cardinality.ZERO_OR_MORE, "Names of the stores to query, the default store if empty"),
+                new FunctionParameterSequenceType("options", Type.MAP, Cardinality.EXACTLY_ONE, "Query options")
+            },
+            new FunctionReturnSequenceType(Type.ITEM, Cardinality.ZERO_OR_MORE, "Solution set of query $sparql-query, a document, a string or maps"))
     };
 
     @Override
@@ -40,16 +87,66 @@ public class FunSparql extends BasicFunction {
 
 	if (worker == null) {
 	    LOG.error("Unable to access SPARQL index worker");
+	} else if (isCalledAs("stores")) {
+	    ValueSequence names = new ValueSequence();
+	    for (String name : worker.getStoreNames()) {
+		names.add(new StringValue(name));
+	    }
+	    result = names;
 	} else {
 	    String query = "";
 	    if (!args[0].isEmpty()) {
 		query = args[0].getStringValue();
 	    }
-	    result = worker.query(context, query);
+	    if (isCalledAs("query-page")) {
+		long offset = ((IntegerValue) args[1].itemAt(0)).getLong();
+		long limit = ((IntegerValue) args[2].itemAt(0)).getLong();
+		if (offset < 0 || limit < 0) {
+		    throw new XPathException(this, "$offset and $limit must not be negative");
+		}
+		result = worker.queryPage(context, query, offset, limit);
+	    } else if (args.length >= 2) {
+		List<String> stores = new ArrayList<>();
+		for (SequenceIterator i = args[1].iterate(); i.hasNext();) {
+		    stores.add(i.nextItem().getStringValue());
+		}
+		SparqlQueryOptions options = args.length == 3
+			? options((AbstractMapType) args[2].itemAt(0)) : new SparqlQueryOptions();
+		result = worker.query(context, query, stores, options);
+	    } else {
+		result = worker.query(context, query);
+	    }
 	}
         return result;
     }
 
+    private SparqlQueryOptions options(AbstractMapType map) throws XPathException {
+        SparqlQueryOptions options = new SparqlQueryOptions();
+        options.setTimeout(option(map, "timeout"));
+        options.setMaxResults(option(map, "max-results"));
+        Sequence format = map.get(new StringValue("format"));
+        if (!format.isEmpty()) {
+            SparqlQueryOptions.Format f = SparqlQueryOptions.Format.forName(format.getStringValue());
+            if (f == null) {
+                throw new XPathException(this, "Unknown result format: " + format.getStringValue());
+            }
+            options.setFormat(f);
+        }
+        return options;
+    }
+
+    private long option(AbstractMapType map, String key) throws XPathException {
+        Sequence value = map.get(new StringValue(key));
+        if (value.isEmpty()) {
+            return 0;
+        }
+        long option = ((IntegerValue) value.itemAt(0).convertTo(Type.INTEGER)).getLong();
+        if (option < 0) {
+            throw new XPathException(this, "Option " + key + " must not be negative");
+        }
+        return option;
+    }
+
     public FunSparql(XQueryContext context, FunctionSignature signature) {
         super(context, signature);
     }
@@ -0,0 +1,48 @@
+package org.exist.xquery.modules.rdf;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import org.exist.dom.QName;
+import org.exist.indexing.rdf.TDBIndexWorker;
+import org.exist.indexing.rdf.TDBRDFIndex;
+import org.exist.xquery.*;
+import org.exist.xquery.value.EmptySequence;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.Type;
+
+/**
+ * Barrier for reading the RDF index writes of committed transactions.
+ */
+public class FunSparqlAwaitIndex extends BasicFunction {
+
+    protected static Logger LOG = LogManager.getLogger(FunSparqlAwaitIndex.class);
+
+    public final static FunctionSignature[] signatures = {
+	new FunctionSignature(
+            new QName("await-index", SparqlModule.NAMESPACE_URI, null),
+            "Waits until the RDF of the documents stored and removed by transactions committed so far " +
+            "is written to the index, so that following queries see it. " +
+            "Needed with asynchronous index writes (index module attribute asyncWrites) or write batching. " +
+            "Raises an error while a cursor of the calling query is open, whose read transaction would not see the writes, " +
+            "or while the background writer fails to write queued changes.",
+            null,
+            new FunctionReturnSequenceType(Type.EMPTY, Cardinality.EMPTY, "Empty"))
+    };
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+
+        TDBIndexWorker worker = (TDBIndexWorker) context.getBroker().getIndexController().getWorkerByIndexId(TDBRDFIndex.ID);
+        if (worker == null) {
+            throw new XPathException(this, "Unable to access SPARQL index worker");
+        }
+        worker.awaitIndex();
+        return EmptySequence.EMPTY_SEQUENCE;
+    }
+
+    public FunSparqlAwaitIndex(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+}
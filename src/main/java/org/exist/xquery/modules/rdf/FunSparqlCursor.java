@@ -0,0 +1,84 @@
+package org.exist.xquery.modules.rdf;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import org.exist.dom.QName;
+import org.exist.indexing.rdf.SparqlCursor;
+import org.exist.indexing.rdf.TDBIndexWorker;
+import org.exist.indexing.rdf.TDBRDFIndex;
+import org.exist.xquery.*;
+import org.exist.xquery.value.EmptySequence;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+
+/**
+ * Cursors over SPARQL SELECT solutions, read from the RDF index on demand.
+ */
+public class FunSparqlCursor extends BasicFunction {
+
+    protected static Logger LOG = LogManager.getLogger(FunSparqlCursor.class);
+
+    private static final FunctionParameterSequenceType CURSOR_PARAM =
+            new FunctionParameterSequenceType("cursor", Type.LONG, Cardinality.EXACTLY_ONE, "Cursor handle from sparql:cursor-open");
+
+    public final static FunctionSignature[] signatures = {
+	new FunctionSignature(
+            new QName("cursor-open", SparqlModule.NAMESPACE_URI, null),
+            "Opens a cursor over the solutions to the SPARQL SELECT query $sparql-query. " +
+            "The cursor is closed by sparql:cursor-close, or when the XQuery ends.",
+            new SequenceType[]{
+                new FunctionParameterSequenceType("sparql-query", Type.STRING, Cardinality.EXACTLY_ONE, "SPARQL SELECT query string")
+            },
+            new FunctionReturnSequenceType(Type.LONG, Cardinality.EXACTLY_ONE, "Cursor handle")),
+	new FunctionSignature(
+            new QName("cursor-next", SparqlModule.NAMESPACE_URI, null),
+            "Reads at most $count further solutions from the cursor $cursor.",
+            new SequenceType[]{
+                CURSOR_PARAM,
+                new FunctionParameterSequenceType("count", Type.INTEGER, Cardinality.EXACTLY_ONE, "Maximum number of solutions to read")
+            },
+            new FunctionReturnSequenceType(Type.ELEMENT, Cardinality.ZERO_OR_MORE, "One sparql:result element per solution, empty when the cursor is exhausted")),
+	new FunctionSignature(
+            new QName("cursor-close", SparqlModule.NAMESPACE_URI, null),
+            "Closes the cursor $cursor.",
+            new SequenceType[]{
+                CURSOR_PARAM
+            },
+            new FunctionReturnSequenceType(Type.EMPTY, Cardinality.EMPTY, "Empty"))
+    };
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+
+        if (isCalledAs("cursor-open")) {
+            TDBIndexWorker worker = (TDBIndexWorker) context.getBroker().getIndexController().getWorkerByIndexId(TDBRDFIndex.ID);
+            if (worker == null) {
+                throw new XPathException(this, "Unable to access SPARQL index worker");
+            }
+            SparqlCursor cursor = worker.openCursor(context, args[0].getStringValue());
+            return new IntegerValue(SparqlContextObjects.store(context, cursor), Type.LONG);
+        }
+
+        long id = ((IntegerValue) args[0].itemAt(0)).getLong();
+        if (isCalledAs("cursor-next")) {
+            long count = ((IntegerValue) args[1].itemAt(0)).getLong();
+            if (count < 0) {
+                throw new XPathException(this, "$count must not be negative");
+            }
+            SparqlCursor cursor = SparqlContextObjects.retrieve(context, id, SparqlCursor.class);
+            return cursor.next(context, count);
+        }
+
+        SparqlContextObjects.close(context, id);
+        return EmptySequence.EMPTY_SEQUENCE;
+    }
+
+    public FunSparqlCursor(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+}
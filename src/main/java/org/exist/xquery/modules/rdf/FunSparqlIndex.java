@@ -0,0 +1,128 @@
+package org.exist.xquery.modules.rdf;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import org.exist.dom.QName;
+import org.exist.indexing.rdf.TDBIndexWorker;
+import org.exist.indexing.rdf.TDBRDFIndex;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.*;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+
+/**
+ * Maintenance of the RDF index. Restricted to the dba role.
+ */
+public class FunSparqlIndex extends BasicFunction {
+
+    protected static Logger LOG = LogManager.getLogger(FunSparqlIndex.class);
+
+    private static final FunctionParameterSequenceType COLLECTION_PARAM =
+            new FunctionParameterSequenceType("collection-uri", Type.STRING, Cardinality.EXACTLY_ONE, "Collection to reindex, with its descendants");
+
+    public final static FunctionSignature[] signatures = {
+	new FunctionSignature(
+            new QName("reindex", SparqlModule.NAMESPACE_URI, null),
+            "Rebuilds the RDF index of the collection $collection-uri and its descendants. " +
+            "Documents are parsed on the number of threads configured by the index module attribute reindexThreads. " +
+            "If the index is empty, the triples are written by the TDB bulk loader.",
+            new SequenceType[]{
+                COLLECTION_PARAM
+            },
+            new FunctionReturnSequenceType(Type.LONG, Cardinality.EXACTLY_ONE, "Number of documents reindexed")),
+	new FunctionSignature(
+            new QName("reindex", SparqlModule.NAMESPACE_URI, null),
+            "Rebuilds the RDF index of the collection $collection-uri and its descendants, " +
+            "parsing documents on $threads threads.",
+            new SequenceType[]{
+                COLLECTION_PARAM,
+                new FunctionParameterSequenceType("threads", Type.INTEGER, Cardinality.EXACTLY_ONE, "Number of parser threads")
+            },
+            new FunctionReturnSequenceType(Type.LONG, Cardinality.EXACTLY_ONE, "Number of documents reindexed")),
+	new FunctionSignature(
+            new QName("rebuild", SparqlModule.NAMESPACE_URI, null),
+            "Rebuilds the whole RDF index from the RDF indexed documents of the database, " +
+            "replacing its content using the TDB bulk loader. Queries running when the new content is loaded fail.",
+            null,
+            new FunctionReturnSequenceType(Type.LONG, Cardinality.EXACTLY_ONE, "Number of documents reindexed")),
+	new FunctionSignature(
+            new QName("analyze", SparqlModule.NAMESPACE_URI, null),
+            "Recounts the predicate and class statistics of all RDF stores, by which TDB orders the patterns of queries. " +
+            "The statistics are kept up to date as documents change, this rebuilds them exactly. " +
+            "Queries of a store started while its new statistics are applied fail.",
+            null,
+            new FunctionReturnSequenceType(Type.LONG, Cardinality.EXACTLY_ONE, "Number of triples counted")),
+	new FunctionSignature(
+            new QName("analyze", SparqlModule.NAMESPACE_URI, null),
+            "Recounts the predicate and class statistics of the RDF stores $stores.",
+            new SequenceType[]{
+                new FunctionParameterSequenceType("stores", Type.STRING, Cardinality.ZERO_OR_MORE, "Names of the stores, all stores if empty")
+            },
+            new FunctionReturnSequenceType(Type.LONG, Cardinality.EXACTLY_ONE, "Number of triples counted")),
+	new FunctionSignature(
+            new QName("drop-store", SparqlModule.NAMESPACE_URI, null),
+            "Closes the RDF store $store and deletes its files. The default store can not be dropped. " +
+            "A store still named by a collection configuration is created again when a document of the collection is stored.",
+            new SequenceType[]{
+                new FunctionParameterSequenceType("store", Type.STRING, Cardinality.EXACTLY_ONE, "Name of the store")
+            },
+            new FunctionReturnSequenceType(Type.EMPTY, Cardinality.EMPTY, "Empty"))
+    };
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+
+        if (!context.getSubject().hasDbaRole()) {
+            throw new XPathException(this, "Permission denied, only dba users may maintain the RDF index");
+        }
+        TDBIndexWorker worker = (TDBIndexWorker) context.getBroker().getIndexController().getWorkerByIndexId(TDBRDFIndex.ID);
+        if (worker == null) {
+            throw new XPathException(this, "Unable to access SPARQL index worker");
+        }
+
+        if (isCalledAs("rebuild")) {
+            return new IntegerValue(worker.rebuild(0), Type.LONG);
+        }
+        if (isCalledAs("drop-store")) {
+            worker.dropStore(args[0].getStringValue());
+            return Sequence.EMPTY_SEQUENCE;
+        }
+        if (isCalledAs("analyze")) {
+            List<String> stores = new ArrayList<>();
+            if (getArgumentCount() > 0) {
+                for (SequenceIterator i = args[0].iterate(); i.hasNext();) {
+                    stores.add(i.nextItem().getStringValue());
+                }
+            }
+            return new IntegerValue(worker.analyze(stores), Type.LONG);
+        }
+
+        int threads = 0;
+        if (getArgumentCount() > 1) {
+            threads = ((IntegerValue) args[1].itemAt(0)).getInt();
+            if (threads <= 0) {
+                throw new XPathException(this, "$threads must be positive");
+            }
+        }
+        XmldbURI uri;
+        try {
+            uri = XmldbURI.xmldbUriFor(args[0].getStringValue());
+        } catch (URISyntaxException e) {
+            throw new XPathException(this, "Invalid collection URI: " + args[0].getStringValue());
+        }
+        return new IntegerValue(worker.reindex(uri, threads), Type.LONG);
+    }
+
+    public FunSparqlIndex(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+}
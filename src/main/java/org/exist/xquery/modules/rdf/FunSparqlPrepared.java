@@ -0,0 +1,115 @@
+package org.exist.xquery.modules.rdf;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QuerySolutionMap;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import org.exist.dom.QName;
+import org.exist.indexing.rdf.TDBIndexWorker;
+import org.exist.indexing.rdf.TDBRDFIndex;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+
+/**
+ * Prepared SPARQL queries, parsed once and executed with variable bindings.
+ */
+public class FunSparqlPrepared extends BasicFunction {
+
+    protected static Logger LOG = LogManager.getLogger(FunSparqlPrepared.class);
+
+    public final static FunctionSignature[] signatures = {
+	new FunctionSignature(
+            new QName("prepare", SparqlModule.NAMESPACE_URI, null),
+            "Parses the SPARQL query $sparql-query for execution by sparql:execute. " +
+            "The prepared query is released when the XQuery ends.",
+            new SequenceType[]{
+                new FunctionParameterSequenceType("sparql-query", Type.STRING, Cardinality.EXACTLY_ONE, "SPARQL query string")
+            },
+            new FunctionReturnSequenceType(Type.LONG, Cardinality.EXACTLY_ONE, "Prepared query handle")),
+	new FunctionSignature(
+            new QName("execute", SparqlModule.NAMESPACE_URI, null),
+            "Returns the solution set to the prepared SPARQL query $prepared from the RDF index, with the query " +
+            "variables named by the keys of $bindings bound to their values. xs:anyURI values are bound as IRIs, " +
+            "xs:string and untyped values as plain literals and other atomic values as typed literals.",
+            new SequenceType[]{
+                new FunctionParameterSequenceType("prepared", Type.LONG, Cardinality.EXACTLY_ONE, "Prepared query handle from sparql:prepare"),
+                new FunctionParameterSequenceType("bindings", Type.MAP, Cardinality.EXACTLY_ONE, "Map from variable name to value")
+            },
+            new FunctionReturnSequenceType(Type.NODE, Cardinality.EXACTLY_ONE, "Solution set of query $prepared"))
+    };
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+
+        TDBIndexWorker worker = (TDBIndexWorker) context.getBroker().getIndexController().getWorkerByIndexId(TDBRDFIndex.ID);
+        if (worker == null) {
+            throw new XPathException(this, "Unable to access SPARQL index worker");
+        }
+
+        if (isCalledAs("prepare")) {
+            Query query = worker.prepare(args[0].getStringValue());
+            return new IntegerValue(SparqlContextObjects.store(context, query), Type.LONG);
+        }
+
+        long id = ((IntegerValue) args[0].itemAt(0)).getLong();
+        Query query = SparqlContextObjects.retrieve(context, id, Query.class);
+        return worker.query(context, query, bindings((AbstractMapType) args[1].itemAt(0)));
+    }
+
+    private QuerySolutionMap bindings(AbstractMapType map) throws XPathException {
+        QuerySolutionMap bindings = new QuerySolutionMap();
+        for (SequenceIterator keys = map.keys().iterate(); keys.hasNext();) {
+            Item key = keys.nextItem();
+            Sequence value = map.get(key.atomize());
+            if (value.isEmpty()) {
+                // leave unbound
+                continue;
+            }
+            if (value.hasMany()) {
+                throw new XPathException(this, "Binding for variable " + key.getStringValue() + " must be a single item");
+            }
+            String varName = key.getStringValue();
+            if (varName.startsWith("?") || varName.startsWith("$")) {
+                varName = varName.substring(1);
+            }
+            bindings.add(varName, toRDFNode(value.itemAt(0)));
+        }
+        return bindings;
+    }
+
+    /*
+     * Convert an XQuery item to an RDF term
+     */
+    private static RDFNode toRDFNode(Item item) throws XPathException {
+        int type = item.getType();
+        String value = item.getStringValue();
+        if (Type.subTypeOf(type, Type.ANY_URI)) {
+            return ResourceFactory.createResource(value);
+        }
+        if (!Type.subTypeOf(type, Type.ATOMIC) || type == Type.STRING || type == Type.UNTYPED_ATOMIC) {
+            return ResourceFactory.createPlainLiteral(value);
+        }
+        // xs: types map one to one to XSD datatypes
+        String typeName = Type.getTypeName(type);
+        typeName = typeName.substring(typeName.indexOf(':') + 1);
+        return ResourceFactory.createTypedLiteral(value,
+                TypeMapper.getInstance().getSafeTypeByName(XSDDatatype.XSD + "#" + typeName));
+    }
+
+    public FunSparqlPrepared(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.exist.xquery.modules.rdf;
+
+import java.util.Map;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import org.exist.dom.QName;
+import org.exist.indexing.rdf.Histogram;
+import org.exist.indexing.rdf.RDFIndexMetrics;
+import org.exist.indexing.rdf.TDBIndexWorker;
+import org.exist.indexing.rdf.TDBRDFIndex;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.DoubleValue;
+import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+
+/**
+ * Metrics of the RDF index, as also exposed by JMX.
+ */
+public class FunSparqlStats extends BasicFunction {
+
+    protected static Logger LOG = LogManager.getLogger(FunSparqlStats.class);
+
+    public final static FunctionSignature[] signatures = {
+	new FunctionSignature(
+            new QName("stats", SparqlModule.NAMESPACE_URI, null),
+            "Returns the metrics of the RDF index since the database started: documents indexed and removed, " +
+            "triples added and removed, write transaction ('flush') times and sizes, bulk load times, " +
+            "query preparation times, execution times, result writing times and result sizes per query type, " +
+            "active readers and writers, transactions queued for the background writer, and the file sizes of the stores. " +
+            "Times are in microseconds, histograms are maps of count, mean, p50, p90, p99 and max.",
+            null,
+            new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE, "Map of the metrics"))
+    };
+
+    @Override
+    public Sequence eval(Sequence[] args, Sequence contextSequence) throws XPathException {
+
+        TDBIndexWorker worker = (TDBIndexWorker) context.getBroker().getIndexController().getWorkerByIndexId(TDBRDFIndex.ID);
+        if (worker == null) {
+            throw new XPathException(this, "Unable to access SPARQL index worker");
+        }
+        RDFIndexMetrics metrics = worker.getMetrics();
+
+        MapType stats = new MapType(context);
+        add(stats, "documents-indexed", new IntegerValue(metrics.getDocumentsIndexed()));
+        add(stats, "documents-removed", new IntegerValue(metrics.getDocumentsRemoved()));
+        add(stats, "triples-added", new IntegerValue(metrics.getTriplesAdded()));
+        add(stats, "triples-removed", new IntegerValue(metrics.getTriplesRemoved()));
+        add(stats, "flush-time", histogram(metrics.getFlushTime()));
+        add(stats, "flush-size", histogram(metrics.getFlushSize()));
+        add(stats, "bulk-load-time", histogram(metrics.getBulkLoadTime()));
+        add(stats, "query-prepare-time", histogram(metrics.getQueryPrepareTime()));
+        MapType queries = new MapType(context);
+        Map<String, Histogram.Snapshot> execTimes = metrics.getQueryExecTime();
+        Map<String, Histogram.Snapshot> resultTimes = metrics.getQueryResultTime();
+        Map<String, Histogram.Snapshot> resultSizes = metrics.getQueryResultSize();
+        for (String type : execTimes.keySet()) {
+            MapType query = new MapType(context);
+            add(query, "exec-time", histogram(execTimes.get(type)));
+            add(query, "result-time", histogram(resultTimes.get(type)));
+            add(query, "result-size", histogram(resultSizes.get(type)));
+            add(queries, type, query);
+        }
+        add(stats, "queries", queries);
+        add(stats, "active-readers", new IntegerValue(metrics.getActiveReaders()));
+        add(stats, "active-writers", new IntegerValue(metrics.getActiveWriters()));
+        add(stats, "queue-depth", new IntegerValue(metrics.getQueueDepth()));
+        MapType storeSizes = new MapType(context);
+        for (Map.Entry<String, Long> size : metrics.getStoreSizes().entrySet()) {
+            add(storeSizes, size.getKey(), new IntegerValue(size.getValue()));
+        }
+        add(stats, "store-sizes", storeSizes);
+        return stats;
+    }
+
+    private MapType histogram(Histogram.Snapshot snapshot) throws XPathException {
+        MapType histogram = new MapType(context);
+        add(histogram, "count", new IntegerValue(snapshot.getCount()));
+        add(histogram, "mean", new DoubleValue(snapshot.getMean()));
+        add(histogram, "p50", new IntegerValue(snapshot.getP50()));
+        add(histogram, "p90", new IntegerValue(snapshot.getP90()));
+        add(histogram, "p99", new IntegerValue(snapshot.getP99()));
+        add(histogram, "max", new IntegerValue(snapshot.getMax()));
+        return histogram;
+    }
+
+    private static void add(MapType map, String key, Sequence value) throws XPathException {
+        map.add(new StringValue(key), value);
+    }
+
+    public FunSparqlStats(XQueryContext context, FunctionSignature signature) {
+        super(context, signature);
+    }
+
+}
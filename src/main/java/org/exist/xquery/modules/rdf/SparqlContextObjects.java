@@ -0,0 +1,77 @@
+package org.exist.xquery.modules.rdf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+
+/**
+ * Java objects handed out to XQuery as xs:long handles. The objects live in
+ * the XQuery context, and any still open when the context is reset are
+ * closed by {@link SparqlModule}.
+ */
+final class SparqlContextObjects {
+
+    private static final Logger LOG = LogManager.getLogger(SparqlContextObjects.class);
+    private static final String CONTEXT_ATTRIBUTE = "_sparql_context_objects";
+    private static final AtomicLong nextId = new AtomicLong(1);
+
+    private SparqlContextObjects() {
+    }
+
+    static long store(XQueryContext context, Object object) {
+        long id = nextId.getAndIncrement();
+        getObjects(context, true).put(id, object);
+        return id;
+    }
+
+    static <T> T retrieve(XQueryContext context, long id, Class<T> type) throws XPathException {
+        Map<Long, Object> objects = getObjects(context, false);
+        Object object = objects == null ? null : objects.get(id);
+        if (!type.isInstance(object)) {
+            throw new XPathException("No open " + type.getSimpleName() + " with handle " + id);
+        }
+        return type.cast(object);
+    }
+
+    static void close(XQueryContext context, long id) {
+        Map<Long, Object> objects = getObjects(context, false);
+        if (objects != null) {
+            close(objects.remove(id));
+        }
+    }
+
+    static void closeAll(XQueryContext context) {
+        Map<Long, Object> objects = getObjects(context, false);
+        if (objects != null) {
+            for (Object object : objects.values()) {
+                close(object);
+            }
+            objects.clear();
+        }
+    }
+
+    private static void close(Object object) {
+        if (object instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) object).close();
+            } catch (Exception ex) {
+                LOG.warn(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Long, Object> getObjects(XQueryContext context, boolean create) {
+        Map<Long, Object> objects = (Map<Long, Object>) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (objects == null && create) {
+            objects = new HashMap<>();
+            context.setAttribute(CONTEXT_ATTRIBUTE, objects);
+        }
+        return objects;
+    }
+
+}
@@ -18,6 +18,23 @@ public class SparqlModule extends AbstractInternalModule {
     
     public static final FunctionDef[] functions = {
     	new FunctionDef(FunSparql.signatures[0], FunSparql.class),
+    	new FunctionDef(FunSparql.signatures[1], FunSparql.class),
+    	new FunctionDef(FunSparql.signatures[2], FunSparql.class),
+    	new FunctionDef(FunSparql.signatures[3], FunSparql.class),
+    	new FunctionDef(FunSparql.signatures[4], FunSparql.class),
+    	new FunctionDef(FunSparqlCursor.signatures[0], FunSparqlCursor.class),
+    	new FunctionDef(FunSparqlCursor.signatures[1], FunSparqlCursor.class),
+    	new FunctionDef(FunSparqlCursor.signatures[2], FunSparqlCursor.class),
+    	new FunctionDef(FunSparqlPrepared.signatures[0], FunSparqlPrepared.class),
+    	new FunctionDef(FunSparqlPrepared.signatures[1], FunSparqlPrepared.class),
+    	new FunctionDef(FunSparqlIndex.signatures[0], FunSparqlIndex.class),
+    	new FunctionDef(FunSparqlIndex.signatures[1], FunSparqlIndex.class),
+    	new FunctionDef(FunSparqlIndex.signatures[2], FunSparqlIndex.class),
+    	new FunctionDef(FunSparqlIndex.signatures[3], FunSparqlIndex.class),
+    	new FunctionDef(FunSparqlIndex.signatures[4], FunSparqlIndex.class),
+    	new FunctionDef(FunSparqlIndex.signatures[5], FunSparqlIndex.class),
+    	new FunctionDef(FunSparqlStats.signatures[0], FunSparqlStats.class),
+    	new FunctionDef(FunSparqlAwaitIndex.signatures[0], FunSparqlAwaitIndex.class),
     };
     
     public SparqlModule(Map<String, List<? extends Object>> parameters) {
@@ -39,6 +56,13 @@ public class SparqlModule extends AbstractInternalModule {
         return "A SPARQL and RDF indexing module.";
     }
 
+    @Override
+    public void reset(XQueryContext xqueryContext, boolean keepGlobals) {
+        // close cursors etc. left open by the query
+        SparqlContextObjects.closeAll(xqueryContext);
+        super.reset(xqueryContext, keepGlobals);
+    }
+
     @Override
     public String getReleaseVersion() {
         return RELEASED_IN_VERSION;
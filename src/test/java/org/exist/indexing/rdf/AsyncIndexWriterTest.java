@@ -0,0 +1,258 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replay of the journal of the background writer, and retries of failed
+ * writes.
+ */
+public class AsyncIndexWriterTest {
+
+    private static final String STORE = "test";
+    private static final Triple TRIPLE = new Triple(NodeFactory.createURI("myhouse://chair"),
+            NodeFactory.createURI("myhouse://madeOf"), NodeFactory.createLiteral("wood"));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TDBStore store;
+    private Path queueDir;
+    private final TDBRDFIndex index = new TDBRDFIndex() {
+        @Override
+        TDBStore getStore(String name) {
+            assertEquals(STORE, name);
+            return store;
+        }
+    };
+
+    @Before
+    public void openStore() throws IOException {
+        store = new TDBStore(STORE, folder.newFolder("store").toPath(), new SparqlResultCache(0, false),
+                new RDFIndexMetrics(index));
+        store.open();
+        queueDir = folder.getRoot().toPath().resolve("queue");
+    }
+
+    @After
+    public void closeStore() {
+        store.close();
+    }
+
+    private static DatasetDelta add(String graphURI) {
+        DatasetDelta changes = new DatasetDelta();
+        changes.add(graphURI, DatasetDelta.NO_SOURCE, Collections.singletonList(TRIPLE));
+        return changes;
+    }
+
+    private static byte[] record(DatasetDelta changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(STORE);
+        changes.write(out);
+        out.flush();
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        bytes = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytes);
+        out.writeInt(record.length);
+        out.writeLong(crc.getValue());
+        out.write(record);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private boolean contains(String graphURI) {
+        Dataset began = store.beginRead();
+        try {
+            Node graph = NodeFactory.createURI(graphURI);
+            return store.getDataset().asDatasetGraph().contains(graph, TRIPLE.getSubject(), TRIPLE.getPredicate(),
+                    TRIPLE.getObject());
+        } finally {
+            store.endRead(began);
+        }
+    }
+
+    private static long files(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    /* wait until the writer fails to write the queued changes */
+    private static void awaitFailure(AsyncIndexWriter writer) throws InterruptedException {
+        try {
+            writer.await();
+            fail("write to a closed store succeeded");
+        } catch (IOException e) {
+            // retrying
+        }
+    }
+
+    @Test
+    public void replay() throws IOException, InterruptedException {
+        Files.createDirectories(queueDir);
+        DatasetDelta drop = new DatasetDelta();
+        drop.drop("urn:doc2");
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        segment.write(record(add("urn:doc1")));
+        segment.write(record(add("urn:doc2")));
+        segment.write(record(drop));
+        Files.write(queueDir.resolve("queue-3.log"), segment.toByteArray());
+        // the last record was cut short by a crash, before it was queued
+        byte[] cut = record(add("urn:doc4"));
+        segment = new ByteArrayOutputStream();
+        segment.write(record(add("urn:doc3")));
+        segment.write(cut, 0, cut.length - 2);
+        Files.write(queueDir.resolve("queue-4.log"), segment.toByteArray());
+
+        AsyncIndexWriter writer = new AsyncIndexWriter(index, queueDir, 2);
+        writer.open();
+        try {
+            writer.await();
+            assertTrue(contains("urn:doc1"));
+            assertFalse(contains("urn:doc2"));
+            assertTrue(contains("urn:doc3"));
+            assertFalse(contains("urn:doc4"));
+            assertEquals(0, writer.getDepth());
+            // only the current segment is left
+            assertFalse(Files.exists(queueDir.resolve("queue-3.log")));
+            assertFalse(Files.exists(queueDir.resolve("queue-4.log")));
+            assertEquals(0, Files.size(queueDir.resolve("queue-5.log")));
+
+            writer.add(store, add("urn:doc5"));
+            writer.await();
+            assertTrue(contains("urn:doc5"));
+        } finally {
+            writer.close();
+        }
+        assertEquals(0, files(queueDir));
+    }
+
+    @Test
+    public void replaySegments() throws IOException, InterruptedException {
+        Files.createDirectories(queueDir);
+        for (int i = 0; i < 3; i++) {
+            Files.write(queueDir.resolve("queue-" + i + ".log"), record(add("urn:doc" + i)));
+        }
+
+        // a queue of one, so the writer catches up after each segment queued
+        AsyncIndexWriter writer = new AsyncIndexWriter(index, queueDir, 1);
+        writer.open();
+        try {
+            writer.await();
+            for (int i = 0; i < 3; i++) {
+                assertTrue(contains("urn:doc" + i));
+            }
+            assertEquals(1, files(queueDir));
+            assertEquals(0, Files.size(queueDir.resolve("queue-3.log")));
+        } finally {
+            writer.close();
+        }
+        assertEquals(0, files(queueDir));
+    }
+
+    @Test
+    public void retry() throws IOException, InterruptedException {
+        AsyncIndexWriter writer = new AsyncIndexWriter(index, queueDir, 10);
+        writer.open();
+        try {
+            store.close();
+            writer.add(store, add("urn:doc1"));
+            awaitFailure(writer);
+            assertEquals(1, writer.getDepth());
+
+            store.open();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (true) {
+                try {
+                    writer.await();
+                    break;
+                } catch (IOException e) {
+                    assertTrue(e.getMessage(), System.currentTimeMillis() < deadline);
+                    Thread.sleep(100);
+                }
+            }
+            assertEquals(0, writer.getDepth());
+            assertTrue(contains("urn:doc1"));
+            // the failure is cleared
+            writer.add(store, add("urn:doc2"));
+            writer.await();
+            assertTrue(contains("urn:doc2"));
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void isIndexed() throws IOException, InterruptedException {
+        AsyncIndexWriter writer = new AsyncIndexWriter(index, queueDir, 10);
+        writer.open();
+        try {
+            // queued changes tell without waiting for the failing writer
+            store.close();
+            writer.add(store, add("urn:doc1"));
+            assertEquals(Boolean.TRUE, writer.isIndexed(store, "urn:doc1", DatasetDelta.NO_SOURCE));
+            DatasetDelta drop = new DatasetDelta();
+            drop.drop("urn:doc1");
+            writer.add(store, drop);
+            assertEquals(Boolean.FALSE, writer.isIndexed(store, "urn:doc1", DatasetDelta.NO_SOURCE));
+            assertNull(writer.isIndexed(store, "urn:doc2", DatasetDelta.NO_SOURCE));
+
+            // removals do not tell, waiting for them fails while the writer does
+            DatasetDelta remove = new DatasetDelta();
+            remove.remove("urn:doc1", DatasetDelta.NO_SOURCE, Collections.singletonList(TRIPLE));
+            writer.add(store, remove);
+            try {
+                writer.isIndexed(store, "urn:doc1", DatasetDelta.NO_SOURCE);
+                fail("write to a closed store succeeded");
+            } catch (IOException e) {
+                // retrying
+            }
+            store.open();
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void closeWhileFailing() throws IOException, InterruptedException {
+        AsyncIndexWriter writer = new AsyncIndexWriter(index, queueDir, 10);
+        writer.open();
+        store.close();
+        writer.add(store, add("urn:doc1"));
+        awaitFailure(writer);
+        writer.close();
+        // the changes are kept for the next start
+        assertEquals(1, files(queueDir));
+
+        store.open();
+        assertFalse(contains("urn:doc1"));
+        writer = new AsyncIndexWriter(index, queueDir, 10);
+        writer.open();
+        try {
+            writer.await();
+            assertTrue(contains("urn:doc1"));
+        } finally {
+            writer.close();
+        }
+        assertEquals(0, files(queueDir));
+    }
+
+}
@@ -0,0 +1,151 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.DatasetGraphFactory;
+import com.hp.hpl.jena.sparql.core.Quad;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Serialization of the changes journaled by the background writer.
+ */
+public class DatasetDeltaTest {
+
+    private static final Node P = NodeFactory.createURI("myhouse://property");
+    private static final Node BLANK = NodeFactory.createAnon(new AnonId("b1"));
+    private static final Node CHAIR = NodeFactory.createURI("myhouse://chair");
+    private static final Node LANG = NodeFactory.createLiteral("stol", "sv", false);
+    private static final Node INTEGER = NodeFactory.createLiteral("5", XSDDatatype.XSDinteger);
+    private static final Node BOOLEAN = NodeFactory.createLiteral("true", XSDDatatype.XSDboolean);
+    private static final Node PLAIN = NodeFactory.createLiteral("wood");
+
+    private static final Node DOC = NodeFactory.createURI("urn:doc");
+    private static final Node SHARED = NodeFactory.createURI("urn:shared");
+
+    private static byte[] write(DatasetDelta changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        changes.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static DatasetDelta read(byte[] bytes) throws IOException {
+        return DatasetDelta.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static Set<Quad> quads(DatasetGraph dsg) {
+        Set<Quad> quads = new HashSet<>();
+        for (Iterator<Quad> it = dsg.find(Node.ANY, Node.ANY, Node.ANY, Node.ANY); it.hasNext();) {
+            quads.add(it.next());
+        }
+        return quads;
+    }
+
+    /* a store with triples of a document graph and of a shared graph */
+    private static DatasetGraph[] stored() {
+        DatasetGraph dsg = DatasetGraphFactory.createMem();
+        DatasetGraph sources = DatasetGraphFactory.createMem();
+        DatasetDelta before = new DatasetDelta();
+        before.add(DOC.getURI(), DatasetDelta.NO_SOURCE, Arrays.asList(
+                new Triple(BLANK, P, PLAIN), new Triple(CHAIR, P, LANG)));
+        before.add(SHARED.getURI(), 1, Collections.singletonList(new Triple(CHAIR, P, BOOLEAN)));
+        before.add(SHARED.getURI(), 2, Collections.singletonList(new Triple(CHAIR, P, BOOLEAN)));
+        before.apply(dsg, sources, new StoreStatistics());
+        return new DatasetGraph[] {dsg, sources};
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        DatasetDelta changes = new DatasetDelta();
+        changes.drop(DOC.getURI());
+        changes.add(DOC.getURI(), DatasetDelta.NO_SOURCE, Arrays.asList(
+                new Triple(BLANK, P, LANG), new Triple(CHAIR, P, INTEGER)));
+        changes.remove(SHARED.getURI(), 1, Collections.singletonList(new Triple(CHAIR, P, BOOLEAN)));
+        changes.add(SHARED.getURI(), 1, Collections.singletonList(new Triple(BLANK, P, INTEGER)));
+
+        byte[] bytes = write(changes);
+        DatasetDelta copy = read(bytes);
+        assertArrayEquals(bytes, write(copy));
+        assertEquals(changes.getGraphs(), copy.getGraphs());
+        assertEquals(changes.getDocuments(), copy.getDocuments());
+        assertEquals(changes.getTriples(), copy.getTriples());
+        assertEquals(changes.getAddedTriples(), copy.getAddedTriples());
+        assertEquals(changes.getRemovedTriples(), copy.getRemovedTriples());
+        assertTrue(copy.hasSources());
+
+        DatasetGraph[] expected = stored();
+        changes.apply(expected[0], expected[1], new StoreStatistics());
+        DatasetGraph[] actual = stored();
+        copy.apply(actual[0], actual[1], new StoreStatistics());
+        assertEquals(quads(expected[0]), quads(actual[0]));
+        assertEquals(quads(expected[1]), quads(actual[1]));
+
+        // nodes come back with their label, language and datatype
+        assertTrue(actual[0].contains(DOC, BLANK, P, LANG));
+        assertTrue(actual[0].contains(DOC, CHAIR, P, INTEGER));
+        assertFalse(actual[0].contains(DOC, BLANK, P, PLAIN));
+        // still stated by document 2
+        assertTrue(actual[0].contains(SHARED, CHAIR, P, BOOLEAN));
+        assertTrue(actual[0].contains(SHARED, BLANK, P, INTEGER));
+    }
+
+    @Test
+    public void isIndexed() {
+        DatasetDelta changes = new DatasetDelta();
+        changes.add(DOC.getURI(), DatasetDelta.NO_SOURCE, Collections.singletonList(new Triple(CHAIR, P, PLAIN)));
+        changes.remove(SHARED.getURI(), 1, Collections.singletonList(new Triple(CHAIR, P, BOOLEAN)));
+        assertEquals(Boolean.TRUE, changes.isIndexed(DOC.getURI(), DatasetDelta.NO_SOURCE));
+        // the other triples of document 1 may be left
+        assertTrue(changes.changes(SHARED.getURI(), 1));
+        assertNull(changes.isIndexed(SHARED.getURI(), 1));
+        assertFalse(changes.changes(SHARED.getURI(), 2));
+
+        changes.drop(DOC.getURI());
+        changes.dropSourced(SHARED.getURI());
+        assertEquals(Boolean.FALSE, changes.isIndexed(DOC.getURI(), DatasetDelta.NO_SOURCE));
+        assertTrue(changes.changes(SHARED.getURI(), 2));
+        assertEquals(Boolean.FALSE, changes.isIndexed(SHARED.getURI(), 2));
+        changes.add(SHARED.getURI(), 2, Collections.singletonList(new Triple(CHAIR, P, PLAIN)));
+        assertEquals(Boolean.TRUE, changes.isIndexed(SHARED.getURI(), 2));
+    }
+
+    @Test
+    public void sourcedDrop() throws IOException {
+        DatasetDelta changes = new DatasetDelta();
+        changes.add(SHARED.getURI(), 1, Collections.singletonList(new Triple(CHAIR, P, PLAIN)));
+        changes.dropSourced(SHARED.getURI());
+        changes.add(SHARED.getURI(), 2, Collections.singletonList(new Triple(BLANK, P, LANG)));
+
+        DatasetDelta copy = read(write(changes));
+        assertEquals(changes.getGraphs(), copy.getGraphs());
+        assertTrue(copy.hasSources());
+
+        DatasetGraph[] actual = stored();
+        copy.apply(actual[0], actual[1], new StoreStatistics());
+        Set<Quad> expected = new HashSet<>();
+        expected.add(new Quad(DOC, BLANK, P, PLAIN));
+        expected.add(new Quad(DOC, CHAIR, P, LANG));
+        expected.add(new Quad(SHARED, BLANK, P, LANG));
+        assertEquals(expected, quads(actual[0]));
+        // only the source of the triple added after the drop is left
+        assertEquals(1, quads(actual[1]).size());
+    }
+
+}
@@ -0,0 +1,88 @@
+package org.exist.indexing.rdf;
+
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Threshold and sampling of the slow query log.
+ */
+public class SlowQueryLogTest {
+
+    private static final String LOGGER = SlowQueryLog.class.getName();
+
+    private static Level level;
+
+    private final Query q = QueryFactory.create("SELECT * WHERE { ?s ?p ?o }");
+
+    @BeforeClass
+    public static void enableLog() {
+        level = LogManager.getLogger(LOGGER).getLevel();
+        Configurator.setLevel(LOGGER, Level.INFO);
+    }
+
+    @AfterClass
+    public static void restoreLog() {
+        Configurator.setLevel(LOGGER, level);
+    }
+
+    private SlowQueryLog.Execution begin(SlowQueryLog log) {
+        QueryExecution qe = QueryExecutionFactory.create(q, DatasetFactory.createMem());
+        return log.begin(null, q, qe);
+    }
+
+    @Test
+    public void noThreshold() {
+        assertNull(begin(new SlowQueryLog(0, 1)));
+    }
+
+    @Test
+    public void threshold() throws InterruptedException {
+        SlowQueryLog.Execution fast = begin(new SlowQueryLog(60000, 0));
+        assertFalse(fast.end(SlowQueryLog.Outcome.COMPLETED, 0, 0));
+
+        SlowQueryLog.Execution slow = begin(new SlowQueryLog(1, 0));
+        Thread.sleep(5);
+        assertTrue(slow.end(SlowQueryLog.Outcome.COMPLETED, 0, 0));
+        // an execution is logged once
+        assertFalse(slow.end(SlowQueryLog.Outcome.COMPLETED, 0, 0));
+    }
+
+    @Test
+    public void sample() {
+        SlowQueryLog log = new SlowQueryLog(1, 3);
+        int profiled = 0;
+        for (int i = 0; i < 9; i++) {
+            if (begin(log).isProfiled()) {
+                profiled++;
+            }
+        }
+        assertEquals(3, profiled);
+        assertFalse(begin(new SlowQueryLog(1, 0)).isProfiled());
+    }
+
+    @Test
+    public void outcome() throws InterruptedException {
+        SlowQueryLog.Execution cancelled = begin(new SlowQueryLog(1, 0));
+        Thread.sleep(5);
+        cancelled.abort(SlowQueryLog.Outcome.CANCELLED);
+        // already logged as cancelled
+        assertFalse(cancelled.end(SlowQueryLog.Outcome.COMPLETED, 0, 0));
+
+        SlowQueryLog.Execution limited = begin(new SlowQueryLog(1, 0));
+        String entry = limited.entry(SlowQueryLog.Outcome.LIMITED, 5000000, 1000000, 10);
+        assertTrue(entry, entry.startsWith("SPARQL query exceeded the result limit after 5 ms"));
+        assertTrue(entry, entry.contains("10 solutions or triples"));
+        entry = limited.entry(SlowQueryLog.Outcome.CANCELLED, 5000000, -1, -1);
+        assertTrue(entry, entry.startsWith("SPARQL query was cancelled after 5 ms, called from"));
+    }
+
+}